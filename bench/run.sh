@@ -0,0 +1,25 @@
+#!/bin/sh
+#
+# Compiles and runs the benchmarks on a plain JVM. Only the classes of src
+# that don't depend on Android are compiled, through -sourcepath.
+#
+# Usage: bench/run.sh <BenchmarkClass> [args...]
+#
+# Benchmarks: MemoryCacheBenchmark, BitmapCacheBenchmark, AdmissionBenchmark,
+# DownloadBenchmark,
+# ConnectionBenchmark.
+# Each prints one JSON object per line.
+
+set -e
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+OUT_DIR="$BENCH_DIR/out"
+
+rm -rf "$OUT_DIR"
+mkdir -p "$OUT_DIR"
+javac -d "$OUT_DIR" -sourcepath "$BENCH_DIR/../src:$BENCH_DIR/src" \
+	$(find "$BENCH_DIR/src" -name '*.java')
+
+CLASS=$1
+shift
+java -cp "$OUT_DIR" "com.bitfable.ammocache.bench.$CLASS" "$@"
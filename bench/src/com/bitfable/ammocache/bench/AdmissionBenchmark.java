@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.bitfable.ammocache.cache.SizedLruCache;
+
+/**
+ * Compares the hit rate of {@link SizedLruCache} as plain LRU and with its
+ * W-TinyLFU admission policy, replaying access traces in which every entry has
+ * the same size. Each request is a lookup, and a put when it misses.
+ *
+ * The generated traces are:
+ * "scroll", screens of a list app that show a few avatars and icons from a
+ * small hot set next to list images, with flings through long runs of images
+ * seen only once;
+ * "zipf", a skewed popularity over many keys;
+ * "loop", a list scrolled up and down over more images than fit.
+ *
+ * A recorded trace can be given instead, one key per line, such as the urls
+ * passed to download() logged by an app. Prints one JSON object per trace
+ * and policy.
+ * 
+ * Usage: AdmissionBenchmark [capacity] [traceFile]
+ */
+public class AdmissionBenchmark {
+	private static final int DEFAULT_CAPACITY = 64;
+	private static final int TRACE_LENGTH = 200000;
+
+	public static void main(String[] args) throws IOException {
+		int capacity = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CAPACITY;
+
+		if (args.length > 1) {
+			report(args[1], readTrace(args[1]), capacity);
+			return;
+		}
+
+		Random random = new Random(42);
+		report("scroll", scrollTrace(random, capacity), capacity);
+		report("zipf", zipfTrace(random, capacity * 100, 0.9), capacity);
+		report("loop", loopTrace(capacity * 3 / 2), capacity);
+	}
+
+	private static void report(String trace, String[] keys, int capacity) {
+		for (boolean admission : new boolean[] { false, true }) {
+			SizedLruCache<String, Boolean> cache = new SizedLruCache<String, Boolean>(capacity, admission) {
+				@Override
+				protected int sizeOf(String key, Boolean value) {
+					return 1;
+				}
+			};
+
+			long hits = 0;
+			for (String key : keys) {
+				if (cache.get(key) != null) {
+					hits++;
+				} else {
+					cache.put(key, Boolean.TRUE);
+				}
+			}
+
+			System.out.println("{\"benchmark\":\"admission\",\"trace\":\"" + trace + "\",\"policy\":\""
+					+ (admission ? "w_tinylfu" : "lru") + "\",\"capacity\":" + capacity
+					+ ",\"requests\":" + keys.length + ",\"hit_rate\":"
+					+ String.format("%.4f", hits / (double) keys.length) + "}");
+		}
+	}
+
+	/**
+	 * Screens of 8 list images and 4 images from a hot set of half the
+	 * capacity. One screen in ten starts a fling through 50 to 200 images
+	 * shown once, the others scroll back or forth by one row of 2 images.
+	 */
+	private static String[] scrollTrace(Random random, int capacity) {
+		int hotCount = capacity / 2;
+		List<String> trace = new ArrayList<String>(TRACE_LENGTH);
+		int position = 0;
+		int next = 0;
+		while (trace.size() < TRACE_LENGTH) {
+			if (random.nextInt(10) == 0) {
+				int flung = 50 + random.nextInt(151);
+				for (int i = 0; i < flung; i++) {
+					trace.add("list/" + next++);
+				}
+				position = next;
+			} else {
+				position = Math.max(0, Math.min(next, position + (random.nextBoolean() ? 2 : -2)));
+			}
+
+			for (int i = 0; i < 8; i++) {
+				int index = position + i;
+				if (index >= next) next = index + 1;
+				trace.add("list/" + index);
+			}
+			for (int i = 0; i < 4; i++) {
+				trace.add("hot/" + random.nextInt(hotCount));
+			}
+		}
+		return trace.toArray(new String[trace.size()]);
+	}
+
+	private static String[] zipfTrace(Random random, int keyCount, double exponent) {
+		double[] cumulative = new double[keyCount];
+		double sum = 0;
+		for (int i = 0; i < keyCount; i++) {
+			sum += 1 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+
+		String[] trace = new String[TRACE_LENGTH];
+		for (int i = 0; i < trace.length; i++) {
+			double target = random.nextDouble() * sum;
+			int low = 0;
+			int high = keyCount - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (cumulative[middle] < target) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			trace[i] = "zipf/" + low;
+		}
+		return trace;
+	}
+
+	private static String[] loopTrace(int keyCount) {
+		String[] trace = new String[TRACE_LENGTH];
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = "loop/" + i % keyCount;
+		}
+		return trace;
+	}
+
+	private static String[] readTrace(String file) throws IOException {
+		List<String> trace = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0) trace.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return trace.toArray(new String[trace.size()]);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bitfable.ammocache.cache.MemoryCache;
+
+/**
+ * Measures the {@link MemoryCache} behind getBitmapFromCache() and
+ * addBitmapToCache(), with byte arrays of the size of small bitmaps standing
+ * in for Bitmap. The "contention" workload looks up a skewed distribution of
+ * twice as many keys as fit from an increasing number of threads, adding the
+ * misses, and reports operations per second. The "eviction" workload adds
+ * new keys to a full cache from one thread, so that every put pushes an
+ * entry out, and reports the cost of a put when the entry moves to the soft
+ * reference cache and when it is dropped. Prints one JSON object per run.
+ * 
+ * Usage: BitmapCacheBenchmark [durationMillis] [maxThreads]
+ */
+public class BitmapCacheBenchmark {
+	private static final int CAPACITY = 64;
+	private static final int BITMAP_BYTES = 16 * 1024;
+	private static final int EVICTION_KEY_COUNT = 4096;
+	private static final int EVICTION_BITMAP_BYTES = 1024;
+	private static final int BATCH_SIZE = 256;
+
+	public static void main(String[] args) throws InterruptedException {
+		long durationMillis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		String[] keys = newKeys(CAPACITY * 2);
+		byte[][] bitmaps = newBitmaps(keys.length, BITMAP_BYTES);
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			// Warm up before measuring
+			runContention(keys, bitmaps, threads, durationMillis);
+			long opsPerSecond = runContention(keys, bitmaps, threads, durationMillis);
+			System.out.println("{\"benchmark\":\"bitmap_cache\",\"workload\":\"contention\",\"threads\":" + threads
+					+ ",\"ops_per_second\":" + opsPerSecond + "}");
+		}
+
+		keys = newKeys(EVICTION_KEY_COUNT);
+		bitmaps = newBitmaps(keys.length, EVICTION_BITMAP_BYTES);
+		for (int pass = 0; pass < 2; pass++) {
+			for (boolean toSoftCache : new boolean[] { true, false }) {
+				long nanosPerPut = runEviction(keys, bitmaps, toSoftCache, durationMillis);
+				if (pass == 0) continue;
+				System.out.println("{\"benchmark\":\"bitmap_cache\",\"workload\":\"eviction\",\"evicted_to\":\""
+						+ (toSoftCache ? "soft_cache" : "nothing") + "\",\"ns_per_put\":" + nanosPerPut + "}");
+			}
+		}
+	}
+
+	private static String[] newKeys(int count) {
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = "http://example.com/image/" + i + ".jpg";
+		}
+		return keys;
+	}
+
+	private static byte[][] newBitmaps(int count, int size) {
+		byte[][] bitmaps = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			bitmaps[i] = new byte[size];
+		}
+		return bitmaps;
+	}
+
+	private static MemoryCache<String, byte[]> newCache(int maxSize, final boolean toSoftCache) {
+		return new MemoryCache<String, byte[]>(maxSize) {
+			@Override
+			protected int sizeOf(String key, byte[] bitmap) {
+				return bitmap.length;
+			}
+
+			@Override
+			protected boolean entryEvicted(String key, byte[] bitmap) {
+				return !toSoftCache;
+			}
+		};
+	}
+
+	/**
+	 * @return the number of operations per second done by all threads
+	 */
+	private static long runContention(final String[] keys, final byte[][] bitmaps, int threadCount,
+			final long durationMillis) throws InterruptedException {
+		final MemoryCache<String, byte[]> cache = newCache(CAPACITY * BITMAP_BYTES, true);
+		for (int i = 0; i < CAPACITY; i++) {
+			cache.put(keys[i], bitmaps[i]);
+		}
+
+		final AtomicLong operations = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		final long deadline[] = new long[1];
+
+		for (int t = 0; t < threadCount; t++) {
+			final long seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					long count = 0;
+					try {
+						start.await();
+						while (System.nanoTime() < deadline[0]) {
+							for (int i = 0; i < BATCH_SIZE; i++) {
+								// Square the uniform value to skew towards low keys
+								double skewed = random.nextDouble();
+								int index = (int) (skewed * skewed * keys.length);
+								if (cache.get(keys[index]) == null) cache.put(keys[index], bitmaps[index]);
+							}
+							count += BATCH_SIZE;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						operations.addAndGet(count);
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		deadline[0] = System.nanoTime() + durationMillis * 1000000L;
+		start.countDown();
+		done.await();
+		return operations.get() * 1000 / durationMillis;
+	}
+
+	/**
+	 * @return the average time of a put that evicts an entry
+	 */
+	private static long runEviction(String[] keys, byte[][] bitmaps, boolean toSoftCache, long durationMillis) {
+		MemoryCache<String, byte[]> cache = newCache(CAPACITY * EVICTION_BITMAP_BYTES, toSoftCache);
+		for (int i = 0; i < CAPACITY; i++) {
+			cache.put(keys[i], bitmaps[i]);
+		}
+
+		long puts = 0;
+		int next = CAPACITY;
+		long start = System.nanoTime();
+		long deadline = start + durationMillis * 1000000L;
+		while (System.nanoTime() < deadline) {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				cache.put(keys[next], bitmaps[next]);
+				if (++next == keys.length) next = 0;
+			}
+			puts += BATCH_SIZE;
+		}
+		return (System.nanoTime() - start) / puts;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bitfable.ammocache.download.DownloadRequest;
+import com.bitfable.ammocache.download.UrlFetcher;
+import com.bitfable.ammocache.io.ByteArrayPool;
+
+/**
+ * Loads a grid of images from one local {@link ImageServer} whose new
+ * connections are delayed like a handshake over a real network, and counts
+ * the connections the server accepted. Each strategy loads the grid on the
+ * same number of threads as the download dispatcher:
+ * 
+ * "per_request" opens a connection for every image and closes it, as a stack
+ * that does not keep connections alive does. "pooled" opens every image with
+ * {@link UrlFetcher#open(DownloadRequest)} from the threads, reusing
+ * connections. "batch" hands the whole grid to
+ * {@link UrlFetcher#fetchAll(List, java.util.concurrent.Executor, UrlFetcher.ResponseHandler)}.
+ * Prints one JSON object per run.
+ * 
+ * Usage: ConnectionBenchmark [images] [size] [connectLatencyMillis] [latencyMillis] [threads]
+ */
+public class ConnectionBenchmark {
+	private static final int BYTE_ARRAY_POOL_SIZE = 1024 * 1024;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int images = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+		long connectLatencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 30;
+		long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 5;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+		ImageServer server = new ImageServer(connectLatencyMillis);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			int tag = 0;
+			for (String strategy : new String[] { "per_request", "pooled", "batch" }) {
+				// Idle connections stay alive between runs, as they would
+				// while an app scrolls through a grid
+				UrlFetcher fetcher = new UrlFetcher(new ByteArrayPool(BYTE_ARRAY_POOL_SIZE), threads);
+				for (int run = 0; run < RUNS; run++) {
+					List<DownloadRequest> requests = new ArrayList<DownloadRequest>(images);
+					for (int i = 0; i < images; i++) {
+						requests.add(new DownloadRequest(
+								server.getUrl(size, latencyMillis, ImageServer.Mode.FIXED, tag++)));
+					}
+
+					int connectionsBefore = server.getConnectionCount();
+					long start = System.nanoTime();
+					if (strategy.equals("per_request")) {
+						loadPerRequest(requests, executor, threads);
+					} else if (strategy.equals("pooled")) {
+						loadPooled(fetcher, requests, executor, threads);
+					} else {
+						loadBatch(fetcher, requests, executor);
+					}
+					long nanos = System.nanoTime() - start;
+
+					System.out.println("{\"benchmark\":\"connections\",\"strategy\":\"" + strategy
+							+ "\",\"run\":" + run
+							+ ",\"images\":" + images
+							+ ",\"size\":" + size
+							+ ",\"connect_latency_ms\":" + connectLatencyMillis
+							+ ",\"latency_ms\":" + latencyMillis
+							+ ",\"threads\":" + threads
+							+ ",\"connections\":" + (server.getConnectionCount() - connectionsBefore)
+							+ ",\"total_ms\":" + nanos / 1000000 + "}");
+				}
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+			server.close();
+		}
+	}
+
+	private static void loadPerRequest(final List<DownloadRequest> requests, ExecutorService executor, int threads)
+			throws Exception {
+		runOnThreads(requests, executor, threads, new Loader() {
+			public void load(DownloadRequest request) throws IOException {
+				HttpURLConnection connection = (HttpURLConnection) new URL(request.getKey()).openConnection();
+				connection.setRequestProperty("Connection", "close");
+				try {
+					drain(connection.getInputStream(), size(request));
+				} finally {
+					connection.disconnect();
+				}
+			}
+		});
+	}
+
+	private static void loadPooled(final UrlFetcher fetcher, List<DownloadRequest> requests,
+			ExecutorService executor, int threads) throws Exception {
+		runOnThreads(requests, executor, threads, new Loader() {
+			public void load(DownloadRequest request) throws IOException {
+				UrlFetcher.Response response = fetcher.open(request);
+				try {
+					fetcher.readFully(response).close();
+				} finally {
+					response.close();
+				}
+			}
+		});
+	}
+
+	private static void loadBatch(final UrlFetcher fetcher, List<DownloadRequest> requests,
+			ExecutorService executor) throws IOException {
+		final AtomicInteger failures = new AtomicInteger();
+		fetcher.fetchAll(requests, executor, new UrlFetcher.ResponseHandler() {
+			public void onResponse(DownloadRequest request, UrlFetcher.Response response) throws IOException {
+				fetcher.readFully(response).close();
+			}
+
+			public void onFailure(DownloadRequest request, IOException e) {
+				failures.incrementAndGet();
+			}
+		});
+		if (failures.get() > 0) throw new IOException(failures.get() + " requests failed");
+	}
+
+	private interface Loader {
+		void load(DownloadRequest request) throws IOException;
+	}
+
+	/**
+	 * Loads the requests from the given number of threads, each taking the
+	 * next request once it is done with the previous one
+	 */
+	private static void runOnThreads(final List<DownloadRequest> requests, ExecutorService executor, int threads,
+			final Loader loader) throws Exception {
+		final AtomicInteger nextRequest = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					int index;
+					while ((index = nextRequest.getAndIncrement()) < requests.size()) {
+						loader.load(requests.get(index));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	private static int size(DownloadRequest request) {
+		String key = request.getKey();
+		int start = key.indexOf("size=") + "size=".length();
+		return Integer.parseInt(key.substring(start, key.indexOf('&', start)));
+	}
+
+	private static void drain(InputStream in, int size) throws IOException {
+		byte[] buffer = new byte[8 * 1024];
+		int total = 0;
+		int read;
+		try {
+			while ((read = in.read(buffer)) != -1) {
+				total += read;
+			}
+		} finally {
+			in.close();
+		}
+		if (total != size) throw new IOException("read " + total + " bytes instead of " + size);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.bitfable.ammocache.cache.DiskLruCache;
+import com.bitfable.ammocache.download.DownloadRequest;
+import com.bitfable.ammocache.download.UrlFetcher;
+import com.bitfable.ammocache.io.ByteArrayPool;
+
+/**
+ * Measures the latency of the network path of UrlImageDownloader against a
+ * local {@link ImageServer}, for every way the server can delimit a body.
+ * The "buffered" path reads the body into a pooled buffer, as images decoded
+ * at a target size are. The "disk" path streams it into a
+ * {@link DiskLruCache}, as prefetches do. Decoding needs Android and is not
+ * measured. Prints one JSON object per run.
+ * 
+ * Usage: DownloadBenchmark [iterations] [latencyMillis] [sizes...]
+ */
+public class DownloadBenchmark {
+	private static final int BYTE_ARRAY_POOL_SIZE = 1024 * 1024;
+	private static final long DISK_CACHE_SIZE = 64 * 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		int[] sizes = { 16 * 1024, 256 * 1024 };
+		if (args.length > 2) {
+			sizes = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				sizes[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		ImageServer server = new ImageServer();
+		UrlFetcher fetcher = new UrlFetcher(new ByteArrayPool(BYTE_ARRAY_POOL_SIZE));
+		File diskCacheDir = File.createTempFile("ammocache", "bench");
+		diskCacheDir.delete();
+		DiskLruCache diskCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
+
+		try {
+			for (ImageServer.Mode mode : ImageServer.Mode.values()) {
+				for (int size : sizes) {
+					for (boolean toDisk : new boolean[] { false, true }) {
+						// Warm up the connection pool and the JIT before measuring
+						run(server, fetcher, toDisk ? diskCache : null, mode, size, 0, iterations / 5 + 1);
+						long[] nanos = run(server, fetcher, toDisk ? diskCache : null, mode, size,
+								latencyMillis, iterations);
+						report(mode, toDisk ? "disk" : "buffered", size, latencyMillis, nanos);
+					}
+				}
+			}
+		} finally {
+			diskCache.delete();
+			server.close();
+		}
+	}
+
+	/**
+	 * @return the latency of each download
+	 */
+	private static long[] run(ImageServer server, UrlFetcher fetcher, DiskLruCache diskCache,
+			ImageServer.Mode mode, int size, long latencyMillis, int iterations) throws IOException {
+		long[] nanos = new long[iterations];
+		for (int i = 0; i < iterations; i++) {
+			DownloadRequest request = new DownloadRequest(server.getUrl(size, latencyMillis, mode, i));
+
+			long start = System.nanoTime();
+			UrlFetcher.Response response = fetcher.open(request);
+			try {
+				if (diskCache == null) {
+					fetcher.readFully(response).close();
+				} else {
+					DiskLruCache.Editor editor = diskCache.edit(request.getKey());
+					OutputStream out = editor.newOutputStream(0);
+					try {
+						fetcher.copyTo(response, out);
+					} finally {
+						out.close();
+					}
+					editor.commit();
+				}
+			} finally {
+				response.close();
+			}
+			nanos[i] = System.nanoTime() - start;
+
+			if (request.getBytesDownloaded() != size) {
+				throw new IOException("read " + request.getBytesDownloaded()
+						+ " bytes instead of " + size + " from " + request.getKey());
+			}
+		}
+		return nanos;
+	}
+
+	private static void report(ImageServer.Mode mode, String path, int size, long latencyMillis, long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long n : sorted) total += n;
+		long mean = total / sorted.length;
+
+		System.out.println("{\"benchmark\":\"download\",\"mode\":\"" + mode.name().toLowerCase()
+				+ "\",\"path\":\"" + path
+				+ "\",\"size\":" + size
+				+ ",\"latency_ms\":" + latencyMillis
+				+ ",\"iterations\":" + sorted.length
+				+ ",\"mean_us\":" + mean / 1000
+				+ ",\"p50_us\":" + percentile(sorted, 50) / 1000
+				+ ",\"p90_us\":" + percentile(sorted, 90) / 1000
+				+ ",\"p99_us\":" + percentile(sorted, 99) / 1000
+				+ ",\"max_us\":" + sorted[sorted.length - 1] / 1000
+				+ ",\"bytes_per_second\":" + (long) (size * 1e9 / mean) + "}");
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+		return sorted[Math.max(index, 0)];
+	}
+}
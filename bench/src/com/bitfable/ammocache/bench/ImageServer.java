@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface that serves bodies of
+ * any size, after a delay, with one of the three ways a server can delimit
+ * them. Connections are kept alive unless the body is delimited by closing
+ * the connection. Each connection is served by its own thread, and can be
+ * delayed to stand for the round trips of a TCP and TLS handshake.
+ */
+public class ImageServer implements Closeable {
+	public enum Mode {
+		/** With a Content-Length header */
+		FIXED,
+		/** With Transfer-Encoding: chunked */
+		CHUNKED,
+		/** Without Content-Length, the connection is closed after the body */
+		CLOSE
+	}
+
+	private static final int CHUNK_SIZE = 8 * 1024;
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final ServerSocket mServerSocket;
+	private final Map<Integer, byte[]> mBodies = new HashMap<Integer, byte[]>();
+	private final long mConnectLatencyMillis;
+	private final AtomicInteger mConnectionCount = new AtomicInteger();
+	private volatile boolean mClosed;
+
+	public ImageServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * @param connectLatencyMillis the time to wait before reading the first
+	 * request of a new connection
+	 */
+	public ImageServer(long connectLatencyMillis) throws IOException {
+		mConnectLatencyMillis = connectLatencyMillis;
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptThread = new Thread("ImageServer") {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * @param size the number of bytes of the body
+	 * @param latencyMillis the time to wait before sending the response
+	 * @param tag makes the URL unique, so that nothing can cache it
+	 */
+	public String getUrl(int size, long latencyMillis, Mode mode, int tag) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/image?size=" + size
+				+ "&latency=" + latencyMillis + "&mode=" + mode.name() + "&tag=" + tag;
+	}
+
+	/**
+	 * @return the number of connections accepted so far
+	 */
+	public int getConnectionCount() {
+		return mConnectionCount.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mClosed = true;
+		mServerSocket.close();
+	}
+
+	private void acceptConnections() {
+		while (!mClosed) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				// Closed
+				return;
+			}
+			mConnectionCount.incrementAndGet();
+
+			Thread connectionThread = new Thread("ImageServer connection") {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						// The client went away
+					} finally {
+						try { socket.close(); } catch (IOException ignored) { }
+					}
+				}
+			};
+			connectionThread.setDaemon(true);
+			connectionThread.start();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		if (mConnectLatencyMillis > 0) {
+			try {
+				Thread.sleep(mConnectLatencyMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 64);
+
+		while (true) {
+			String requestLine = readLine(in);
+			if (requestLine == null) return;
+
+			boolean clientCloses = false;
+			String header;
+			while ((header = readLine(in)) != null && header.length() > 0) {
+				if (header.toLowerCase().equals("connection: close")) clientCloses = true;
+			}
+			if (header == null) return;
+
+			Map<String, String> params = parseQuery(requestLine);
+			int size = Integer.parseInt(params.get("size"));
+			long latencyMillis = Long.parseLong(params.get("latency"));
+			Mode mode = Mode.valueOf(params.get("mode"));
+
+			if (latencyMillis > 0) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			byte[] body = getBody(size);
+			write(out, "HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\n");
+			switch (mode) {
+			case FIXED:
+				write(out, "Content-Length: " + size + "\r\n\r\n");
+				out.write(body);
+				break;
+			case CHUNKED:
+				write(out, "Transfer-Encoding: chunked\r\n\r\n");
+				for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+					int length = Math.min(CHUNK_SIZE, size - offset);
+					write(out, Integer.toHexString(length) + "\r\n");
+					out.write(body, offset, length);
+					out.write(CRLF);
+				}
+				write(out, "0\r\n\r\n");
+				break;
+			case CLOSE:
+				write(out, "Connection: close\r\n\r\n");
+				out.write(body);
+				break;
+			}
+			out.flush();
+
+			if (mode == Mode.CLOSE || clientCloses) return;
+		}
+	}
+
+	private synchronized byte[] getBody(int size) {
+		byte[] body = mBodies.get(size);
+		if (body == null) {
+			body = new byte[size];
+			new Random(size).nextBytes(body);
+			mBodies.put(size, body);
+		}
+		return body;
+	}
+
+	private static Map<String, String> parseQuery(String requestLine) {
+		// GET /image?a=1&b=2 HTTP/1.1
+		String target = requestLine.split(" ")[1];
+		Map<String, String> params = new HashMap<String, String>();
+		int start = target.indexOf('?');
+		if (start == -1) return params;
+
+		for (String pair : target.substring(start + 1).split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals != -1) params.put(pair.substring(0, equals), pair.substring(equals + 1));
+		}
+		return params;
+	}
+
+	/**
+	 * @return the line without its terminator, or null at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') return line.toString();
+			if (c != '\r') line.append((char) c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+
+	private static void write(OutputStream out, String s) throws IOException {
+		out.write(s.getBytes("US-ASCII"));
+	}
+}
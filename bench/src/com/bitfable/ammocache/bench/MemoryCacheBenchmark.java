@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bitfable.ammocache.cache.SizedLruCache;
+
+/**
+ * Compares the throughput of {@link SizedLruCache} with the synchronized
+ * LinkedHashMap it replaced, with an increasing number of threads. The "hits"
+ * workload only looks up keys that are all cached. The "mixed" workload does
+ * 90% lookups on a skewed distribution of twice as many keys as fit, putting
+ * the misses, and 10% puts. Prints one JSON object per run.
+ * 
+ * Usage: MemoryCacheBenchmark [durationMillis] [maxThreads]
+ */
+public class MemoryCacheBenchmark {
+	private static final int CAPACITY = 64;
+	private static final int BATCH_SIZE = 256;
+
+	private static final class Workload {
+		final String mName;
+		final int mKeyCount;
+		final int mReadPercent;
+
+		Workload(String name, int keyCount, int readPercent) {
+			mName = name;
+			mKeyCount = keyCount;
+			mReadPercent = readPercent;
+		}
+	}
+
+	private static final Workload[] WORKLOADS = {
+		new Workload("hits", CAPACITY, 100),
+		new Workload("mixed", CAPACITY * 2, 90),
+	};
+
+	private interface Cache {
+		Integer get(String key);
+		void put(String key, Integer value);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long durationMillis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		for (Workload workload : WORKLOADS) {
+			String[] keys = new String[workload.mKeyCount];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = "http://example.com/image/" + i + ".jpg";
+			}
+
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				// Warm up each implementation before measuring it
+				for (int pass = 0; pass < 2; pass++) {
+					boolean measure = pass == 1;
+					report(measure, workload, "synchronized_linked_hash_map", threads,
+							run(fill(newSynchronizedCache(), keys), keys, workload, threads, durationMillis));
+					report(measure, workload, "sized_lru_cache", threads,
+							run(fill(newSizedLruCache(), keys), keys, workload, threads, durationMillis));
+				}
+			}
+		}
+	}
+
+	private static Cache fill(Cache cache, String[] keys) {
+		for (int i = 0; i < keys.length; i++) {
+			cache.put(keys[i], Integer.valueOf(i));
+		}
+		return cache;
+	}
+
+	private static Cache newSynchronizedCache() {
+		final SynchronizedLruCache<String, Integer> cache = new SynchronizedLruCache<String, Integer>(CAPACITY);
+		return new Cache() {
+			@Override
+			public Integer get(String key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(String key, Integer value) {
+				cache.put(key, value);
+			}
+		};
+	}
+
+	private static Cache newSizedLruCache() {
+		final SizedLruCache<String, Integer> cache = new SizedLruCache<String, Integer>(CAPACITY) {
+			@Override
+			protected int sizeOf(String key, Integer value) {
+				return 1;
+			}
+		};
+		return new Cache() {
+			@Override
+			public Integer get(String key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(String key, Integer value) {
+				cache.put(key, value);
+			}
+		};
+	}
+
+	/**
+	 * @return the number of operations done by all threads
+	 */
+	private static long run(final Cache cache, final String[] keys, final Workload workload, int threadCount,
+			final long durationMillis)
+			throws InterruptedException {
+		final AtomicLong operations = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		final long deadline[] = new long[1];
+
+		for (int t = 0; t < threadCount; t++) {
+			final long seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					long count = 0;
+					try {
+						start.await();
+						while (System.nanoTime() < deadline[0]) {
+							for (int i = 0; i < BATCH_SIZE; i++) {
+								// Square the uniform value to skew towards low keys
+								double skewed = random.nextDouble();
+								String key = keys[(int) (skewed * skewed * keys.length)];
+								if (random.nextInt(100) < workload.mReadPercent) {
+									if (cache.get(key) == null) cache.put(key, Integer.valueOf(i));
+								} else {
+									cache.put(key, Integer.valueOf(i));
+								}
+							}
+							count += BATCH_SIZE;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						operations.addAndGet(count);
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		deadline[0] = System.nanoTime() + durationMillis * 1000000L;
+		start.countDown();
+		done.await();
+		return operations.get() * 1000 / durationMillis;
+	}
+
+	private static void report(boolean measure, Workload workload, String implementation, int threads,
+			long opsPerSecond) {
+		if (!measure) return;
+		System.out.println("{\"benchmark\":\"memory_cache\",\"workload\":\"" + workload.mName
+				+ "\",\"implementation\":\"" + implementation
+				+ "\",\"threads\":" + threads + ",\"ops_per_second\":" + opsPerSecond + "}");
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The hard cache as it was before SizedLruCache became concurrent: an
+ * access-ordered LinkedHashMap behind a single monitor, where a hit also
+ * removes and puts the entry again. Kept as the baseline of
+ * {@link MemoryCacheBenchmark}.
+ */
+class SynchronizedLruCache<K, V> {
+	private final int mCapacity;
+	private final LinkedHashMap<K, V> mMap;
+
+	SynchronizedLruCache(int capacity) {
+		mCapacity = capacity;
+		mMap = new LinkedHashMap<K, V>(capacity / 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > mCapacity;
+			}
+		};
+	}
+
+	V get(K key) {
+		synchronized (mMap) {
+			V value = mMap.get(key);
+			if (value != null) {
+				mMap.remove(key);
+				mMap.put(key, value);
+			}
+			return value;
+		}
+	}
+
+	void put(K key, V value) {
+		synchronized (mMap) {
+			mMap.put(key, value);
+		}
+	}
+}
@@ -16,6 +16,8 @@
 
 package com.bitfable.ammocache;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -36,6 +38,11 @@ public class ExampleImageAdapter extends BaseAdapter {
 	private static final String ZERO_PERCENT_STRING = "0%";
 	private static final String PERCENT_STRING = "%";
 
+	/**
+	 * Number of rows below the one being shown whose images are loaded ahead
+	 */
+	private static final int PREFETCH_AHEAD = 4;
+
     private static final String[] URLS = {
         "http://lh5.ggpht.com/_mrb7w4gF8Ds/TCpetKSqM1I/AAAAAAAAD2c/Qef6Gsqf12Y/s144-c/_DSC4374%20copy.jpg",
         "http://lh5.ggpht.com/_Z6tbBnE-swM/TB0CryLkiLI/AAAAAAAAVSo/n6B78hsDUz4/s144-c/_DSC3454.jpg",
@@ -85,11 +92,16 @@ public class ExampleImageAdapter extends BaseAdapter {
     };
 	private LayoutInflater mInflater;
 	private UrlImageDownloader mImageDownloader;
+	private final ArrayList<String> mPrefetchUrls = new ArrayList<String>(PREFETCH_AHEAD);
 	
 	public ExampleImageAdapter(Context context) {
 		mImageDownloader = new UrlImageDownloader(context);
 	}
 
+	public UrlImageDownloader getImageDownloader() {
+		return mImageDownloader;
+	}
+
 	@Override
 	public int getCount() {
 		return 64;
@@ -125,7 +137,8 @@ public class ExampleImageAdapter extends BaseAdapter {
 		final TextView time = (TextView) view.findViewById(R.id.time);
 		time.setText(ZERO_MILLISECONDS_STRING);
 		
-    	mImageDownloader.download(url, (ImageView) view.findViewById(R.id.image), new ProgressListener() {
+		ImageView imageView = (ImageView) view.findViewById(R.id.image);
+    	mImageDownloader.download(url, imageView, new ProgressListener() {
 			@Override
 			public void onProgressUpdated(int progressPercent, long timeElapsedMilli) {
 				progress.setProgress(progressPercent);
@@ -133,8 +146,24 @@ public class ExampleImageAdapter extends BaseAdapter {
 				time.setText(timeElapsedMilli + MILLISECONDS_STRING);
 			}
 		});
+		prefetchAfter(position, imageView);
 		
 		return view;
 	}
 
+	/**
+	 * Loads the images of the next rows at the size of the image views, so
+	 * that they are already in memory when scrolled to
+	 */
+	private void prefetchAfter(int position, ImageView imageView) {
+		mPrefetchUrls.clear();
+		int end = Math.min(position + PREFETCH_AHEAD, getCount() - 1);
+		for (int i = position + 1; i <= end; i++) {
+			mPrefetchUrls.add((String) getItem(i));
+		}
+
+		ViewGroup.LayoutParams params = imageView.getLayoutParams();
+		mImageDownloader.prefetch(mPrefetchUrls, params.width, params.height);
+	}
+
 }
@@ -19,11 +19,32 @@ package com.bitfable.ammocache;
 import android.app.ListActivity;
 import android.os.Bundle;
 
+import com.bitfable.ammocache.download.AbstractImageDownloader;
+import com.bitfable.ammocache.download.PauseOnScrollListener;
+
 public class LaunchActivity extends ListActivity {
+    private AbstractImageDownloader mImageDownloader;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setListAdapter(new ExampleImageAdapter(this));
+        ExampleImageAdapter adapter = new ExampleImageAdapter(this);
+        mImageDownloader = adapter.getImageDownloader();
+        setListAdapter(adapter);
+        getListView().setOnScrollListener(new PauseOnScrollListener(mImageDownloader));
+    }
+
+    // Only called on Ice Cream Sandwich and later
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mImageDownloader.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mImageDownloader.onLowMemory();
     }
 }
 
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A pool of mutable bitmaps that are no longer used, so that they can be
+ * decoded into through BitmapFactory.Options.inBitmap instead of allocating
+ * a new bitmap. Bitmaps are keyed by their width, height and config, as
+ * decoding into a bitmap requires the same dimensions before KitKat. The
+ * least recently pooled bitmaps are dropped once the pool holds more than
+ * its maximum size.
+ * 
+ * inBitmap is only available since Honeycomb, on earlier versions the pool
+ * stays empty.
+ */
+public class BitmapPool {
+	private final HashMap<String, LinkedList<Bitmap>> mBitmapsBySize =
+		new HashMap<String, LinkedList<Bitmap>>();
+	// Pooled bitmaps, least recently pooled first
+	private final LinkedHashMap<Bitmap, String> mBitmapsByAge = new LinkedHashMap<Bitmap, String>();
+	private int mMaxSize;
+	private int mSize;
+	private long mHitCount;
+	private long mMissCount;
+
+	/**
+	 * @param maxSize the maximum number of bytes used by pooled bitmaps
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @return true if bitmaps can be reused on this version of Android
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Takes a bitmap out of the pool.
+	 * @return a bitmap with the given dimensions and config, or null if the
+	 * pool has none
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(getKey(width, height, config));
+		if (bitmaps == null || bitmaps.isEmpty()) {
+			mMissCount++;
+			return null;
+		}
+
+		Bitmap bitmap = bitmaps.removeLast();
+		mBitmapsByAge.remove(bitmap);
+		mSize -= getByteCount(bitmap);
+		mHitCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Puts a bitmap that is not displayed or referenced anywhere else into the
+	 * pool. Its pixels will be overwritten.
+	 * @return true if the bitmap was pooled, false if it can't be reused or is
+	 * larger than the pool
+	 */
+	public synchronized boolean put(Bitmap bitmap) {
+		if (!isSupported() || !bitmap.isMutable() || bitmap.isRecycled()
+				|| bitmap.getConfig() == null) {
+			return false;
+		}
+
+		int byteCount = getByteCount(bitmap);
+		if (byteCount > mMaxSize || mBitmapsByAge.containsKey(bitmap)) return false;
+
+		String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(key);
+		if (bitmaps == null) {
+			bitmaps = new LinkedList<Bitmap>();
+			mBitmapsBySize.put(key, bitmaps);
+		}
+		bitmaps.addLast(bitmap);
+		mBitmapsByAge.put(bitmap, key);
+		mSize += byteCount;
+
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * Drops the least recently pooled bitmaps until the pool uses at most
+	 * maxSize bytes.
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		Iterator<Map.Entry<Bitmap, String>> iterator = mBitmapsByAge.entrySet().iterator();
+		while (mSize > maxSize && iterator.hasNext()) {
+			Map.Entry<Bitmap, String> eldest = iterator.next();
+			iterator.remove();
+
+			LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(eldest.getValue());
+			bitmaps.remove(eldest.getKey());
+			if (bitmaps.isEmpty()) mBitmapsBySize.remove(eldest.getValue());
+			mSize -= getByteCount(eldest.getKey());
+		}
+	}
+
+	/**
+	 * Drops every pooled bitmap.
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * @param maxSize the maximum number of bytes used by pooled bitmaps
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the number of bytes used by pooled bitmaps
+	 */
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @return the number of bitmaps in the pool
+	 */
+	public synchronized int getCount() {
+		return mBitmapsByAge.size();
+	}
+
+	/**
+	 * @return the number of times {@link #get(int, int, Bitmap.Config)}
+	 * returned a bitmap
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return the number of times {@link #get(int, int, Bitmap.Config)}
+	 * returned null
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return the fraction of {@link #get(int, int, Bitmap.Config)} calls that
+	 * returned a bitmap, between 0 and 1
+	 */
+	public synchronized float getHitRate() {
+		long requestCount = mHitCount + mMissCount;
+		return requestCount == 0 ? 0f : (float) mHitCount / requestCount;
+	}
+
+	private static String getKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	private static int getByteCount(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,708 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size-bounded LRU cache of byte streams stored on the file system. Each
+ * entry has a key and a fixed number of values, each value is a file named
+ * after a hash of the key. Reads and writes of entries are recorded in a
+ * journal so that the LRU order and the total size survive process restarts.
+ *
+ * The journal format is based on DiskLruCache from the Android Open Source
+ * Project. After a header, every line is an operation on an entry:
+ *
+ * <pre>
+ *     DIRTY hash               an entry is being created or updated
+ *     CLEAN hash len0 len1 ... the edit was committed, with the value lengths
+ *     REMOVE hash              the edit was aborted or the entry removed
+ *     READ hash                the entry was read, moving it to the head
+ * </pre>
+ *
+ * All methods may do file system I/O and should not be called on the main
+ * thread.
+ */
+public final class DiskLruCache implements Closeable {
+	static final String JOURNAL_FILE = "journal";
+	static final String JOURNAL_FILE_TMP = "journal.tmp";
+	static final String MAGIC = "com.bitfable.ammocache.DiskLruCache";
+	static final String VERSION = "1";
+
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Number of redundant journal lines tolerated before it is rewritten
+	 */
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	private final File mDirectory;
+	private final File mJournalFile;
+	private final File mJournalFileTmp;
+	private final int mAppVersion;
+	private final int mValueCount;
+	private final long mMaxSize;
+
+	private long mSize = 0;
+	private Writer mJournalWriter;
+	private int mRedundantOpCount;
+
+	private final LinkedHashMap<String, Entry> mEntries =
+		new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+	/**
+	 * Trimming and journal compaction are done off the caller's thread
+	 */
+	private final ThreadPoolExecutor mCleanupExecutor = new ThreadPoolExecutor(0, 1,
+			60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	private final Callable<Void> mCleanupCallable = new Callable<Void>() {
+		@Override
+		public Void call() throws Exception {
+			synchronized (DiskLruCache.this) {
+				if (mJournalWriter == null) return null;
+
+				trimToSize();
+				if (journalRebuildRequired()) {
+					rebuildJournal();
+					mRedundantOpCount = 0;
+				}
+			}
+			return null;
+		}
+	};
+
+	private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+		mDirectory = directory;
+		mAppVersion = appVersion;
+		mJournalFile = new File(directory, JOURNAL_FILE);
+		mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+		mValueCount = valueCount;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Opens the cache in the directory, creating it if it does not exist.
+	 * @param appVersion entries written with a different version are discarded
+	 * @param valueCount the number of values per entry
+	 * @param maxSize the maximum number of bytes the cache should use
+	 * @throws IOException if the cache could not be read or created
+	 */
+	public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
+			throws IOException {
+		if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+		if (valueCount <= 0) throw new IllegalArgumentException("valueCount <= 0");
+
+		DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		if (cache.mJournalFile.exists()) {
+			try {
+				cache.readJournal();
+				cache.processJournal();
+				cache.mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(cache.mJournalFile, true), US_ASCII));
+				return cache;
+			} catch (IOException journalIsCorrupt) {
+				cache.delete();
+			}
+		}
+
+		// Create a new empty cache
+		directory.mkdirs();
+		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		cache.rebuildJournal();
+		return cache;
+	}
+
+	private void readJournal() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(mJournalFile), US_ASCII));
+		try {
+			String magic = reader.readLine();
+			String version = reader.readLine();
+			String appVersion = reader.readLine();
+			String valueCount = reader.readLine();
+			String blank = reader.readLine();
+			if (!MAGIC.equals(magic)
+					|| !VERSION.equals(version)
+					|| !Integer.toString(mAppVersion).equals(appVersion)
+					|| !Integer.toString(mValueCount).equals(valueCount)
+					|| !"".equals(blank)) {
+				throw new IOException("unexpected journal header: ["
+						+ magic + ", " + version + ", " + valueCount + ", " + blank + "]");
+			}
+
+			int lineCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				readJournalLine(line);
+				lineCount++;
+			}
+			mRedundantOpCount = lineCount - mEntries.size();
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	private void readJournalLine(String line) throws IOException {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) throw new IOException("unexpected journal line: " + line);
+
+		String hash = parts[1];
+		if (parts[0].equals(REMOVE) && parts.length == 2) {
+			mEntries.remove(hash);
+			return;
+		}
+
+		Entry entry = mEntries.get(hash);
+		if (entry == null) {
+			entry = new Entry(hash);
+			mEntries.put(hash, entry);
+		}
+
+		if (parts[0].equals(CLEAN) && parts.length == 2 + mValueCount) {
+			entry.mReadable = true;
+			entry.mCurrentEditor = null;
+			entry.setLengths(parts, 2);
+		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
+			entry.mCurrentEditor = new Editor(entry);
+		} else if (parts[0].equals(READ) && parts.length == 2) {
+			// this work was already done by calling mEntries.get()
+		} else {
+			throw new IOException("unexpected journal line: " + line);
+		}
+	}
+
+	/**
+	 * Computes the initial size and deletes the files of entries that were
+	 * still being edited when the journal was last written.
+	 */
+	private void processJournal() throws IOException {
+		deleteIfExists(mJournalFileTmp);
+		for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+			Entry entry = i.next();
+			if (entry.mCurrentEditor == null) {
+				for (int t = 0; t < mValueCount; t++) {
+					mSize += entry.mLengths[t];
+				}
+			} else {
+				entry.mCurrentEditor = null;
+				for (int t = 0; t < mValueCount; t++) {
+					deleteIfExists(entry.getCleanFile(t));
+					deleteIfExists(entry.getDirtyFile(t));
+				}
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes a new journal without redundant information, replacing the
+	 * current journal if it exists.
+	 */
+	private synchronized void rebuildJournal() throws IOException {
+		if (mJournalWriter != null) mJournalWriter.close();
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(mJournalFileTmp), US_ASCII));
+		try {
+			writer.write(MAGIC + "\n");
+			writer.write(VERSION + "\n");
+			writer.write(Integer.toString(mAppVersion) + "\n");
+			writer.write(Integer.toString(mValueCount) + "\n");
+			writer.write("\n");
+
+			for (Entry entry : mEntries.values()) {
+				if (entry.mCurrentEditor != null) {
+					writer.write(DIRTY + ' ' + entry.mHash + '\n');
+				} else {
+					writer.write(CLEAN + ' ' + entry.mHash + entry.getLengths() + '\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!mJournalFileTmp.renameTo(mJournalFile)) {
+			throw new IOException("could not rename " + mJournalFileTmp + " to " + mJournalFile);
+		}
+		mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(mJournalFile, true), US_ASCII));
+	}
+
+	/**
+	 * @return a snapshot of the entry for the key, or null if it is not
+	 * cached or is being created. The snapshot must be closed after use.
+	 */
+	public synchronized Snapshot get(String key) throws IOException {
+		checkNotClosed();
+		String hash = hashKey(key);
+		Entry entry = mEntries.get(hash);
+		if (entry == null || !entry.mReadable) return null;
+
+		// Open all streams eagerly so that a concurrent remove() can't take
+		// a value away from a snapshot that is being read
+		InputStream[] ins = new InputStream[mValueCount];
+		try {
+			for (int i = 0; i < mValueCount; i++) {
+				ins[i] = new FileInputStream(entry.getCleanFile(i));
+			}
+		} catch (FileNotFoundException e) {
+			// A file was removed manually
+			for (int i = 0; i < mValueCount; i++) {
+				if (ins[i] == null) break;
+				closeQuietly(ins[i]);
+			}
+			return null;
+		}
+
+		mRedundantOpCount++;
+		mJournalWriter.append(READ + ' ' + hash + '\n');
+		if (journalRebuildRequired()) {
+			mCleanupExecutor.submit(mCleanupCallable);
+		}
+
+		return new Snapshot(ins, entry.mLengths.clone());
+	}
+
+	/**
+	 * Unlike {@link #get(String)}, this opens no file and writes nothing to
+	 * the journal.
+	 * @return true if a readable entry is cached for the key
+	 */
+	public synchronized boolean contains(String key) {
+		checkNotClosed();
+		Entry entry = mEntries.get(hashKey(key));
+		return entry != null && entry.mReadable;
+	}
+
+	/**
+	 * @return an editor for the entry of the key, or null if another edit of
+	 * the same entry is in progress
+	 */
+	public synchronized Editor edit(String key) throws IOException {
+		checkNotClosed();
+		String hash = hashKey(key);
+		Entry entry = mEntries.get(hash);
+		if (entry == null) {
+			entry = new Entry(hash);
+			mEntries.put(hash, entry);
+		} else if (entry.mCurrentEditor != null) {
+			return null;
+		}
+
+		Editor editor = new Editor(entry);
+		entry.mCurrentEditor = editor;
+
+		// Flush the journal before creating files to prevent file leaks
+		mJournalWriter.write(DIRTY + ' ' + hash + '\n');
+		mJournalWriter.flush();
+		return editor;
+	}
+
+	private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+		Entry entry = editor.mEntry;
+		if (entry.mCurrentEditor != editor) throw new IllegalStateException();
+
+		// If this edit is creating the entry for the first time, every value
+		// must have been written
+		if (success && !entry.mReadable) {
+			for (int i = 0; i < mValueCount; i++) {
+				if (!entry.getDirtyFile(i).exists()) {
+					editor.abort();
+					return;
+				}
+			}
+		}
+
+		for (int i = 0; i < mValueCount; i++) {
+			File dirty = entry.getDirtyFile(i);
+			if (success) {
+				if (dirty.exists()) {
+					File clean = entry.getCleanFile(i);
+					deleteIfExists(clean);
+					dirty.renameTo(clean);
+					long oldLength = entry.mLengths[i];
+					long newLength = clean.length();
+					entry.mLengths[i] = newLength;
+					mSize = mSize - oldLength + newLength;
+				}
+			} else {
+				deleteIfExists(dirty);
+			}
+		}
+
+		mRedundantOpCount++;
+		entry.mCurrentEditor = null;
+		if (entry.mReadable | success) {
+			entry.mReadable = true;
+			mJournalWriter.write(CLEAN + ' ' + entry.mHash + entry.getLengths() + '\n');
+		} else {
+			mEntries.remove(entry.mHash);
+			mJournalWriter.write(REMOVE + ' ' + entry.mHash + '\n');
+		}
+		mJournalWriter.flush();
+
+		if (mSize > mMaxSize || journalRebuildRequired()) {
+			mCleanupExecutor.submit(mCleanupCallable);
+		}
+	}
+
+	/**
+	 * We only rebuild the journal when it will halve the size of the journal
+	 * and eliminate at least {@link #REDUNDANT_OP_COMPACT_THRESHOLD} ops.
+	 */
+	private boolean journalRebuildRequired() {
+		return mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+				&& mRedundantOpCount >= mEntries.size();
+	}
+
+	/**
+	 * Removes the entry for the key if it exists and is not being edited.
+	 * @return true if an entry was removed
+	 */
+	public synchronized boolean remove(String key) throws IOException {
+		checkNotClosed();
+		return removeEntry(hashKey(key));
+	}
+
+	private boolean removeEntry(String hash) throws IOException {
+		Entry entry = mEntries.get(hash);
+		if (entry == null || entry.mCurrentEditor != null) return false;
+
+		for (int i = 0; i < mValueCount; i++) {
+			File file = entry.getCleanFile(i);
+			if (file.exists() && !file.delete()) {
+				throw new IOException("failed to delete " + file);
+			}
+			mSize -= entry.mLengths[i];
+			entry.mLengths[i] = 0;
+		}
+
+		mRedundantOpCount++;
+		mJournalWriter.append(REMOVE + ' ' + hash + '\n');
+		mEntries.remove(hash);
+
+		if (journalRebuildRequired()) {
+			mCleanupExecutor.submit(mCleanupCallable);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes used by the cached values
+	 */
+	public synchronized long size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the maximum number of bytes the cache should use
+	 */
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	public synchronized boolean isClosed() {
+		return mJournalWriter == null;
+	}
+
+	private void checkNotClosed() {
+		if (mJournalWriter == null) throw new IllegalStateException("cache is closed");
+	}
+
+	/**
+	 * Writes pending journal operations to the file system.
+	 */
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+		trimToSize();
+		mJournalWriter.flush();
+	}
+
+	/**
+	 * Closes the cache. Edits in progress are aborted, stored values remain
+	 * on the file system.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (mJournalWriter == null) return;
+
+		for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+			if (entry.mCurrentEditor != null) {
+				entry.mCurrentEditor.abort();
+			}
+		}
+		trimToSize();
+		mJournalWriter.close();
+		mJournalWriter = null;
+	}
+
+	/**
+	 * Closes the cache and deletes all of its stored values.
+	 */
+	public void delete() throws IOException {
+		close();
+		deleteContents(mDirectory);
+	}
+
+	private void trimToSize() throws IOException {
+		while (mSize > mMaxSize) {
+			Map.Entry<String, Entry> toEvict = mEntries.entrySet().iterator().next();
+			removeEntry(toEvict.getKey());
+		}
+	}
+
+	/**
+	 * @return the MD5 hash of the key as a hex string, which is safe to use
+	 * as a file name and in the journal
+	 */
+	static String hashKey(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+			StringBuilder hash = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				hash.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hash.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void deleteIfExists(File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+
+	private static void deleteContents(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+
+		for (File file : files) {
+			if (file.isDirectory()) deleteContents(file);
+			if (!file.delete()) throw new IOException("failed to delete " + file);
+		}
+	}
+
+	static void closeQuietly(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * The values of an entry at the time {@link DiskLruCache#get(String)} was
+	 * called.
+	 */
+	public final class Snapshot implements Closeable {
+		private final InputStream[] mIns;
+		private final long[] mLengths;
+
+		private Snapshot(InputStream[] ins, long[] lengths) {
+			mIns = ins;
+			mLengths = lengths;
+		}
+
+		/**
+		 * @return the unbuffered stream of the value at the index
+		 */
+		public InputStream getInputStream(int index) {
+			return mIns[index];
+		}
+
+		/**
+		 * @return the length of the value at the index, in bytes
+		 */
+		public long getLength(int index) {
+			return mLengths[index];
+		}
+
+		@Override
+		public void close() {
+			for (InputStream in : mIns) {
+				closeQuietly(in);
+			}
+		}
+	}
+
+	/**
+	 * Edits the values of an entry. Either {@link #commit()} or
+	 * {@link #abort()} must be called when done.
+	 */
+	public final class Editor {
+		private final Entry mEntry;
+		private boolean mHasErrors;
+
+		private Editor(Entry entry) {
+			mEntry = entry;
+		}
+
+		/**
+		 * @return an unbuffered stream that writes the value at the index. If
+		 * the stream fails the edit will be aborted when committed.
+		 */
+		public OutputStream newOutputStream(int index) throws IOException {
+			synchronized (DiskLruCache.this) {
+				if (mEntry.mCurrentEditor != this) throw new IllegalStateException();
+				return new FaultHidingOutputStream(new FileOutputStream(mEntry.getDirtyFile(index)));
+			}
+		}
+
+		/**
+		 * Publishes the edit, making it visible to readers.
+		 */
+		public void commit() throws IOException {
+			if (mHasErrors) {
+				synchronized (DiskLruCache.this) {
+					completeEdit(this, false);
+					removeEntry(mEntry.mHash);
+				}
+			} else {
+				completeEdit(this, true);
+			}
+		}
+
+		/**
+		 * Discards the edit, leaving the previous values in place.
+		 */
+		public void abort() throws IOException {
+			completeEdit(this, false);
+		}
+
+		private class FaultHidingOutputStream extends FilterOutputStream {
+			private FaultHidingOutputStream(OutputStream out) {
+				super(out);
+			}
+
+			@Override
+			public void write(int oneByte) {
+				try {
+					out.write(oneByte);
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) {
+				try {
+					out.write(buffer, offset, length);
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+
+			@Override
+			public void close() {
+				try {
+					out.close();
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+
+			@Override
+			public void flush() {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+		}
+	}
+
+	private final class Entry {
+		private final String mHash;
+		private final long[] mLengths;
+		private boolean mReadable;
+		private Editor mCurrentEditor;
+
+		private Entry(String hash) {
+			mHash = hash;
+			mLengths = new long[mValueCount];
+		}
+
+		private String getLengths() {
+			StringBuilder result = new StringBuilder();
+			for (long length : mLengths) {
+				result.append(' ').append(length);
+			}
+			return result.toString();
+		}
+
+		private void setLengths(String[] parts, int start) throws IOException {
+			try {
+				for (int i = 0; i < mValueCount; i++) {
+					mLengths[i] = Long.parseLong(parts[start + i]);
+				}
+			} catch (NumberFormatException e) {
+				throw new EOFException("unexpected journal lengths");
+			}
+		}
+
+		private File getCleanFile(int i) {
+			return new File(mDirectory, mHash + "." + i);
+		}
+
+		private File getDirtyFile(int i) {
+			return new File(mDirectory, mHash + "." + i + ".tmp");
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A LRU cache of encoded images, such as JPEG or PNG files, bounded by the
+ * number of bytes they use. Encoded images are several times smaller than
+ * their decoded pixels, so many more of them fit in the same memory, and an
+ * image found here only needs to be decoded again.
+ *
+ * The bytes are copied into arrays on the Java heap, so the budget of the
+ * cache adds to the heap used by the decoded images and should be taken out
+ * of the same memory class. Direct buffers would not help, on Android they
+ * are backed by a heap array too. All methods are thread-safe.
+ */
+public class EncodedMemoryCache {
+	private final SizedLruCache<String, ByteBuffer> mCache;
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+
+	/**
+	 * @param maxBytes the maximum number of encoded bytes held by the cache
+	 */
+	public EncodedMemoryCache(int maxBytes) {
+		mCache = new SizedLruCache<String, ByteBuffer>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, ByteBuffer buffer) {
+				return buffer.capacity();
+			}
+		};
+	}
+
+	/**
+	 * @return a view of the encoded image backed by its array, so that it can
+	 * be decoded in place, positioned at its first byte, or null if it is not
+	 * cached. It must not be modified.
+	 */
+	public ByteBuffer get(String key) {
+		ByteBuffer buffer = mCache.get(key);
+		if (buffer == null) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		mHits.incrementAndGet();
+		// Every reader gets its own position
+		return buffer.duplicate();
+	}
+
+	/**
+	 * Copies the encoded image into the cache. Images larger than the whole
+	 * cache are not kept.
+	 */
+	public void put(String key, byte[] data, int offset, int length) {
+		if (length > mCache.maxSize()) {
+			mCache.remove(key);
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.put(data, offset, length);
+		buffer.flip();
+		mCache.put(key, buffer);
+	}
+
+	public void remove(String key) {
+		mCache.remove(key);
+	}
+
+	/**
+	 * Drops the least recently used images until the cache holds at most
+	 * maxBytes.
+	 */
+	public void trimToSize(int maxBytes) {
+		mCache.trimToSize(maxBytes);
+	}
+
+	public void clear() {
+		mCache.clear();
+	}
+
+	/**
+	 * @return the number of encoded bytes held by the cache
+	 */
+	public int size() {
+		return mCache.size();
+	}
+
+	public int maxSize() {
+		return mCache.maxSize();
+	}
+
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	public long getMissCount() {
+		return mMisses.get();
+	}
+}
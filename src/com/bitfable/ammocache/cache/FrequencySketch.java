@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+/**
+ * Estimates how often keys have been seen recently, in a few bits per entry
+ * of the cache it serves. This is a count-min sketch of 4-bit counters, four
+ * per key, packed sixteen to a long. All counters are halved once the number
+ * of increments reaches ten times the capacity, so that the estimates follow
+ * changes in popularity.
+ *
+ * Not thread-safe, {@link SizedLruCache} only uses it with the eviction lock
+ * held.
+ *
+ * The design is based on the TinyLFU sketch of Caffeine by Ben Manes.
+ */
+public final class FrequencySketch {
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	/**
+	 * Smallest number of longs in the table
+	 */
+	private static final int MIN_TABLE_LENGTH = 8;
+
+	/**
+	 * Increments before the counters are halved, per entry of capacity
+	 */
+	private static final int SAMPLE_SIZE_MULTIPLIER = 10;
+
+	private long[] mTable;
+	private int mTableMask;
+	private int mSampleSize;
+	private int mSize;
+
+	/**
+	 * @param capacity the expected number of entries of the cache
+	 */
+	public FrequencySketch(int capacity) {
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Grows the sketch if the cache now holds more entries than it was sized
+	 * for, which forgets every count.
+	 */
+	public void ensureCapacity(int capacity) {
+		int maximum = Math.max(Math.min(capacity, Integer.MAX_VALUE >>> 1), 1);
+		if (mTable != null && mTable.length >= maximum) return;
+
+		mTable = new long[Math.max(ceilingPowerOfTwo(maximum), MIN_TABLE_LENGTH)];
+		mTableMask = mTable.length - 1;
+		mSampleSize = SAMPLE_SIZE_MULTIPLIER * maximum;
+		if (mSampleSize <= 0) mSampleSize = Integer.MAX_VALUE;
+		mSize = 0;
+	}
+
+	/**
+	 * @return the estimated number of times the key was seen, at most 15
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		// Each key uses one of the four groups of four counters of a long
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records one more occurrence of the key, halving every counter once
+	 * enough occurrences have been recorded
+	 */
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+
+		if (added && ++mSize == mSampleSize) reset();
+	}
+
+	/**
+	 * @return false if the counter is already saturated
+	 */
+	private boolean incrementAt(int index, int counter) {
+		int offset = counter << 2;
+		long mask = 0xfL << offset;
+		if ((mTable[index] & mask) == mask) return false;
+
+		mTable[index] += 1L << offset;
+		return true;
+	}
+
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < mTable.length; i++) {
+			odd += Long.bitCount(mTable[i] & ONE_MASK);
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+		// Halving rounds odd counters down
+		mSize = (mSize >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & mTableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private static int ceilingPowerOfTwo(int x) {
+		int powerOfTwo = 1;
+		while (powerOfTwo < x) powerOfTwo <<= 1;
+		return powerOfTwo;
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory cache of a downloader: a {@link SizedLruCache} backed by a
+ * bounded LRU cache of soft references. Entries pushed out of the first
+ * level, unless {@link #entryEvicted(Object, Object)} takes them, move to the
+ * second one, which keeps the most recently used of them within its own
+ * maximum size. The garbage collector only clears them when memory runs out.
+ *
+ * Hits and misses of both levels are counted. All methods are thread-safe.
+ */
+public abstract class MemoryCache<K, V> {
+	/**
+	 * Fraction of the maximum size of the LRU cache used by the soft
+	 * reference cache when no explicit size is given
+	 */
+	private static final int SOFT_CACHE_DIVISOR = 2;
+
+	private final SizedLruCache<K, V> mHardCache;
+	private final SoftLruCache<K, V> mSoftCache;
+
+	private final AtomicLong mHardHits = new AtomicLong();
+	private final AtomicLong mHardMisses = new AtomicLong();
+	private final AtomicLong mSoftHits = new AtomicLong();
+	private final AtomicLong mSoftMisses = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+
+	/**
+	 * @param maxSize the maximum total size of the entries of the LRU cache,
+	 * in the same unit returned by {@link #sizeOf(Object, Object)}. The soft
+	 * reference cache can hold half as much.
+	 */
+	public MemoryCache(int maxSize) {
+		this(maxSize, maxSize / SOFT_CACHE_DIVISOR);
+	}
+
+	/**
+	 * @param maxSize the maximum total size of the entries of the LRU cache,
+	 * in the same unit returned by {@link #sizeOf(Object, Object)}
+	 * @param softMaxSize the maximum total size of the entries of the soft
+	 * reference cache, or 0 to drop the entries pushed out of the LRU cache
+	 */
+	public MemoryCache(int maxSize, int softMaxSize) {
+		this(maxSize, softMaxSize, false);
+	}
+
+	/**
+	 * @param admission true to only let new entries into the LRU cache if
+	 * they have been used more often than those they would push out, see
+	 * {@link SizedLruCache#SizedLruCache(int, boolean)}. Entries kept out go
+	 * through {@link #entryEvicted(Object, Object)}.
+	 * @see #MemoryCache(int, int)
+	 */
+	public MemoryCache(int maxSize, int softMaxSize, boolean admission) {
+		mSoftCache = new SoftLruCache<K, V>(softMaxSize) {
+			@Override
+			protected boolean isInUse(K key, V value) {
+				return MemoryCache.this.isInUse(key, value);
+			}
+		};
+		mHardCache = new SizedLruCache<K, V>(maxSize, admission) {
+			@Override
+			protected int sizeOf(K key, V value) {
+				return MemoryCache.this.sizeOf(key, value);
+			}
+
+			@Override
+			protected void entryEvicted(K key, V value) {
+				mEvictions.incrementAndGet();
+				if (MemoryCache.this.entryEvicted(key, value)) return;
+
+				// Entries pushed out of the LRU cache are transferred to the soft reference cache
+				mSoftCache.put(key, value, sizeOf(key, value));
+			}
+		};
+	}
+
+	/**
+	 * @return the value from the LRU cache, then from the soft reference
+	 * cache, or null if neither has it
+	 */
+	public V get(K key) {
+		// A hit moves the entry to the head so that it is removed last
+		V value = mHardCache.get(key);
+		if (value != null) {
+			mHardHits.incrementAndGet();
+			return value;
+		}
+		mHardMisses.incrementAndGet();
+
+		value = mSoftCache.get(key);
+		if (value != null) {
+			mSoftHits.incrementAndGet();
+			return value;
+		}
+		mSoftMisses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Adds the value to the LRU cache, evicting the least recently used
+	 * entries if needed.
+	 */
+	public void put(K key, V value) {
+		// An older value would only take room in the soft reference cache
+		mSoftCache.remove(key);
+		mHardCache.put(key, value);
+	}
+
+	/**
+	 * Evicts the least recently used entries of the LRU cache until its
+	 * total size is at most maxSize. They go through
+	 * {@link #entryEvicted(Object, Object)} like any other eviction.
+	 */
+	public void trimToSize(int maxSize) {
+		mHardCache.trimToSize(maxSize);
+	}
+
+	/**
+	 * Drops the soft reference cache, except the entries for which
+	 * {@link #isInUse(Object, Object)} returns true, since dropping them
+	 * would not free any memory.
+	 */
+	public void trimSoftCache() {
+		mSoftCache.trimToInUse();
+	}
+
+	/**
+	 * Removes every entry of both levels without calling
+	 * {@link #entryEvicted(Object, Object)}.
+	 */
+	public void clear() {
+		mHardCache.clear();
+		mSoftCache.clear();
+	}
+
+	/**
+	 * @return the total size of the entries in the LRU cache
+	 */
+	public int size() {
+		return mHardCache.size();
+	}
+
+	public int maxSize() {
+		return mHardCache.maxSize();
+	}
+
+	/**
+	 * @return the total size of the entries in the soft reference cache
+	 */
+	public int softSize() {
+		return mSoftCache.size();
+	}
+
+	public int softMaxSize() {
+		return mSoftCache.maxSize();
+	}
+
+	public long getHardHitCount() {
+		return mHardHits.get();
+	}
+
+	public long getHardMissCount() {
+		return mHardMisses.get();
+	}
+
+	/**
+	 * @return the number of lookups that missed the LRU cache and were found
+	 * in the soft reference cache
+	 */
+	public long getSoftHitCount() {
+		return mSoftHits.get();
+	}
+
+	public long getSoftMissCount() {
+		return mSoftMisses.get();
+	}
+
+	/**
+	 * @return the number of entries pushed out of the LRU cache
+	 */
+	public long getEvictionCount() {
+		return mEvictions.get();
+	}
+
+	/**
+	 * @return the number of new entries the admission policy kept out of the
+	 * LRU cache, which are also counted as evictions
+	 */
+	public long getRejectionCount() {
+		return mHardCache.getRejectionCount();
+	}
+
+	/**
+	 * @return the number of entries pushed out of the soft reference cache
+	 * by its maximum size
+	 */
+	public long getSoftEvictionCount() {
+		return mSoftCache.getEvictionCount();
+	}
+
+	/**
+	 * @return the number of entries of the soft reference cache cleared by
+	 * the garbage collector
+	 */
+	public long getSoftCollectedCount() {
+		return mSoftCache.getCollectedCount();
+	}
+
+	/**
+	 * @return the size of the entry, which must not change while it is cached
+	 */
+	abstract protected int sizeOf(K key, V value);
+
+	/**
+	 * Called without holding any lock when an entry has been pushed out of
+	 * the LRU cache. The default implementation returns false.
+	 * @return true if the value was taken care of, false to keep it in the
+	 * soft reference cache
+	 */
+	protected boolean entryEvicted(K key, V value) {
+		return false;
+	}
+
+	/**
+	 * The default implementation returns false.
+	 * @return true if the value is referenced outside of the cache, so that
+	 * {@link #trimSoftCache()} keeps it
+	 */
+	protected boolean isInUse(K key, V value) {
+		return false;
+	}
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A LRU cache that is bounded by the total size of its entries instead of
+ * their count. Subclasses decide how an entry is measured by implementing
+ * {@link #sizeOf(Object, Object)}, and can be told about entries pushed out of
+ * the cache by overriding {@link #entryEvicted(Object, Object)}.
+ *
+ * Lookups don't take any lock. Entries live in a ConcurrentHashMap, and a hit
+ * is only recorded in a small per-thread-stripe buffer. The LRU order is
+ * updated from those buffers in batches by whichever thread manages to take
+ * the eviction lock, which writes always hold. A hit may be dropped when a
+ * buffer fills up faster than it is drained, so the order is close to, but
+ * not exactly, LRU.
+ *
+ * An admission policy in the style of W-TinyLFU can be enabled, so that a
+ * scan through many keys used once does not flush the keys used over and
+ * over. New entries go to a small LRU window first. The entries pushed out of
+ * the window are only let into the main LRU list if a {@link FrequencySketch},
+ * which counts the puts and the hits of each key, says they have been used
+ * more often than each of the least recently used entries they would push
+ * out. Otherwise they are evicted, through
+ * {@link #entryEvicted(Object, Object)} like any other entry.
+ *
+ * The read buffer design is based on ConcurrentLinkedHashMap by Ben Manes.
+ */
+public abstract class SizedLruCache<K, V> {
+	/**
+	 * Number of hits each read buffer can hold, must be a power of two
+	 */
+	private static final int READ_BUFFER_SIZE = 32;
+	private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+	/**
+	 * Number of pending hits in a read buffer that triggers a drain
+	 */
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+	private static final int READ_BUFFER_COUNT =
+		ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+	private static final int READ_BUFFER_INDEX_MASK = READ_BUFFER_COUNT - 1;
+
+	/**
+	 * Number of entries the frequency sketch is first sized for, it grows
+	 * with the cache
+	 */
+	private static final int INITIAL_SKETCH_CAPACITY = 64;
+
+	/**
+	 * Fraction of the maximum size used by the window of the admission
+	 * policy. A larger window than the 1% of Caffeine suits lists, where an
+	 * image scrolled past is often shown again a moment later.
+	 */
+	private static final int WINDOW_DIVISOR = 5;
+
+	private final ConcurrentHashMap<K, Node<K, V>> mMap;
+	private final ReadBuffer<K, V>[] mReadBuffers;
+	private final int mMaxSize;
+	// Null unless the admission policy is enabled, guarded by the eviction
+	// lock
+	private final FrequencySketch mSketch;
+	private final AtomicLong mRejections = new AtomicLong();
+
+	// The LRU list, eldest first, and the total size are guarded by the
+	// eviction lock
+	private final ReentrantLock mEvictionLock = new ReentrantLock();
+	private final Node<K, V> mHead = new Node<K, V>(null, null, 0);
+	private volatile int mSize;
+	// The window of the admission policy, also guarded by the eviction lock.
+	// Its entries are included in mSize.
+	private final Node<K, V> mWindowHead = new Node<K, V>(null, null, 0);
+	private final int mWindowMaxSize;
+	private int mWindowSize;
+
+	/**
+	 * @param maxSize the maximum total size of the entries, in the same unit
+	 * returned by {@link #sizeOf(Object, Object)}
+	 */
+	public SizedLruCache(int maxSize) {
+		this(maxSize, false);
+	}
+
+	/**
+	 * @param maxSize the maximum total size of the entries, in the same unit
+	 * returned by {@link #sizeOf(Object, Object)}
+	 * @param admission true to only let new entries that leave the window
+	 * into the main list if they were used more often than those they would
+	 * push out, false for plain LRU
+	 */
+	public SizedLruCache(int maxSize, boolean admission) {
+		if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+
+		mMaxSize = maxSize;
+		mSketch = admission ? new FrequencySketch(INITIAL_SKETCH_CAPACITY) : null;
+		mWindowMaxSize = admission ? maxSize / WINDOW_DIVISOR : 0;
+		mMap = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, READ_BUFFER_COUNT);
+		mReadBuffers = newReadBuffers(READ_BUFFER_COUNT);
+		mHead.mPrev = mHead;
+		mHead.mNext = mHead;
+		mWindowHead.mPrev = mWindowHead;
+		mWindowHead.mNext = mWindowHead;
+	}
+
+	/**
+	 * @return the value for the key, or null if it is not cached. A hit moves
+	 * the entry towards the head of the queue.
+	 */
+	public final V get(K key) {
+		Node<K, V> node = mMap.get(key);
+		if (node == null) return null;
+
+		recordRead(node);
+		return node.mValue;
+	}
+
+	/**
+	 * Caches the value for the key, then evicts the least recently used
+	 * entries until the cache fits its maximum size again. With the admission
+	 * policy, the new entry may be the one evicted.
+	 * @return the previous value for the key, or null
+	 */
+	public final V put(K key, V value) {
+		if (key == null || value == null) throw new NullPointerException();
+
+		Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+		Node<K, V> previous;
+		List<Node<K, V>> evicted;
+
+		mEvictionLock.lock();
+		try {
+			drainReadBuffers();
+			previous = mMap.put(key, node);
+			if (previous != null) unlink(previous);
+			if (mSketch == null) {
+				linkLast(node, mHead);
+				evicted = evict(mMaxSize);
+			} else {
+				mSketch.ensureCapacity(mMap.size());
+				mSketch.increment(key);
+				node.mInWindow = true;
+				linkLast(node, mWindowHead);
+				evicted = drainWindow();
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		notifyEvicted(evicted);
+		return previous == null ? null : previous.mValue;
+	}
+
+	/**
+	 * @return the removed value, or null if the key was not cached
+	 */
+	public final V remove(K key) {
+		mEvictionLock.lock();
+		try {
+			Node<K, V> node = mMap.remove(key);
+			if (node == null) return null;
+
+			unlink(node);
+			return node.mValue;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the total size is at most
+	 * maxSize. Evicted entries are passed to
+	 * {@link #entryEvicted(Object, Object)}.
+	 */
+	public void trimToSize(int maxSize) {
+		List<Node<K, V>> evicted;
+
+		mEvictionLock.lock();
+		try {
+			drainReadBuffers();
+			evicted = evict(maxSize);
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * Removes every entry without calling
+	 * {@link #entryEvicted(Object, Object)}.
+	 */
+	public final void clear() {
+		mEvictionLock.lock();
+		try {
+			drainReadBuffers();
+			for (Node<K, V> node = mHead.mNext; node != mHead; node = node.mNext) {
+				node.mLinked = false;
+			}
+			for (Node<K, V> node = mWindowHead.mNext; node != mWindowHead; node = node.mNext) {
+				node.mLinked = false;
+			}
+			mHead.mPrev = mHead;
+			mHead.mNext = mHead;
+			mWindowHead.mPrev = mWindowHead;
+			mWindowHead.mNext = mWindowHead;
+			mMap.clear();
+			mSize = 0;
+			mWindowSize = 0;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the total size of the entries currently in the cache
+	 */
+	public final int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the maximum total size of the entries in the cache
+	 */
+	public final int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the number of entries in the cache
+	 */
+	public final int count() {
+		return mMap.size();
+	}
+
+	/**
+	 * @return the number of new entries evicted right away by the admission
+	 * policy
+	 */
+	public final long getRejectionCount() {
+		return mRejections.get();
+	}
+
+	/**
+	 * @return the size of the entry, which must not change while it is cached
+	 */
+	abstract protected int sizeOf(K key, V value);
+
+	/**
+	 * Called when an entry has been pushed out to make room. The default
+	 * implementation does nothing. It is called without holding any lock so
+	 * that subclasses can safely hand entries over to another cache.
+	 */
+	protected void entryEvicted(K key, V value) { }
+
+	private int safeSizeOf(K key, V value) {
+		int size = sizeOf(key, value);
+		if (size < 0) throw new IllegalStateException("negative size: " + key + "=" + value);
+		return size;
+	}
+
+	private void recordRead(Node<K, V> node) {
+		ReadBuffer<K, V> buffer = mReadBuffers[(int) Thread.currentThread().getId() & READ_BUFFER_INDEX_MASK];
+		long writeCount = buffer.mWriteCount.getAndIncrement();
+		buffer.mNodes.lazySet((int) (writeCount & READ_BUFFER_MASK), node);
+
+		if (writeCount - buffer.mReadCount >= READ_BUFFER_DRAIN_THRESHOLD && mEvictionLock.tryLock()) {
+			try {
+				drainReadBuffers();
+			} finally {
+				mEvictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Moves the entries hit since the last drain to the tail of the LRU list.
+	 * Must hold the eviction lock.
+	 */
+	private void drainReadBuffers() {
+		for (ReadBuffer<K, V> buffer : mReadBuffers) {
+			long writeCount = buffer.mWriteCount.get();
+			// Older hits have been overwritten
+			long readCount = Math.max(buffer.mReadCount, writeCount - READ_BUFFER_SIZE);
+
+			for (; readCount < writeCount; readCount++) {
+				int index = (int) (readCount & READ_BUFFER_MASK);
+				Node<K, V> node = buffer.mNodes.get(index);
+				// Not published yet by a racing reader, the hit is dropped
+				if (node == null) continue;
+
+				buffer.mNodes.lazySet(index, null);
+				if (mSketch != null) mSketch.increment(node.mKey);
+				if (node.mLinked) moveToTail(node);
+			}
+			buffer.mReadCount = writeCount;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries of the main list, then of the
+	 * window. Must hold the eviction lock.
+	 * @return the evicted entries, or null if none were evicted
+	 */
+	private List<Node<K, V>> evict(int maxSize) {
+		List<Node<K, V>> evicted = null;
+		while (mSize > maxSize) {
+			Node<K, V> eldest = mHead.mNext != mHead ? mHead.mNext : mWindowHead.mNext;
+			if (eldest == mWindowHead) break;
+
+			mMap.remove(eldest.mKey, eldest);
+			unlink(eldest);
+
+			if (evicted == null) evicted = new ArrayList<Node<K, V>>();
+			evicted.add(eldest);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Moves the entries pushed out of the window to the main list if they
+	 * are let in, see {@link #admit(Node)}, then evicts from the main list
+	 * until the cache fits. Must hold the eviction lock.
+	 * @return the evicted entries, or null if none were evicted
+	 */
+	private List<Node<K, V>> drainWindow() {
+		List<Node<K, V>> evicted = null;
+		while (mWindowSize > mWindowMaxSize) {
+			Node<K, V> candidate = mWindowHead.mNext;
+			unlink(candidate);
+			candidate.mInWindow = false;
+			linkLast(candidate, mHead);
+
+			evicted = concat(evicted, admit(candidate));
+		}
+		// The window may be below its maximum size while the main list is
+		// full
+		return concat(evicted, evict(mMaxSize));
+	}
+
+	private static <K, V> List<Node<K, V>> concat(List<Node<K, V>> first, List<Node<K, V>> second) {
+		if (first == null) return second;
+		if (second != null) first.addAll(second);
+		return first;
+	}
+
+	/**
+	 * Makes room for the candidate, just added at the tail of the main list,
+	 * if it has been used more often than every entry it would push out. The
+	 * candidate itself is evicted otherwise. Must hold the eviction lock.
+	 * @return the evicted entries, or null if none were evicted
+	 */
+	private List<Node<K, V>> admit(Node<K, V> candidate) {
+		int excess = mSize - mMaxSize;
+		if (excess <= 0) return null;
+
+		int candidateFrequency = mSketch.frequency(candidate.mKey);
+		for (Node<K, V> victim = mHead.mNext; excess > 0 && victim != candidate; victim = victim.mNext) {
+			if (mSketch.frequency(victim.mKey) >= candidateFrequency) {
+				mMap.remove(candidate.mKey, candidate);
+				unlink(candidate);
+				mRejections.incrementAndGet();
+
+				List<Node<K, V>> rejected = new ArrayList<Node<K, V>>(1);
+				rejected.add(candidate);
+				return rejected;
+			}
+			excess -= victim.mSize;
+		}
+		return evict(mMaxSize);
+	}
+
+	private void notifyEvicted(List<Node<K, V>> evicted) {
+		if (evicted == null) return;
+
+		for (Node<K, V> node : evicted) {
+			entryEvicted(node.mKey, node.mValue);
+		}
+	}
+
+	/**
+	 * Must hold the eviction lock.
+	 */
+	private void linkLast(Node<K, V> node, Node<K, V> head) {
+		node.mPrev = head.mPrev;
+		node.mNext = head;
+		head.mPrev.mNext = node;
+		head.mPrev = node;
+		node.mLinked = true;
+		mSize += node.mSize;
+		if (node.mInWindow) mWindowSize += node.mSize;
+	}
+
+	/**
+	 * Must hold the eviction lock.
+	 */
+	private void moveToTail(Node<K, V> node) {
+		Node<K, V> head = node.mInWindow ? mWindowHead : mHead;
+		if (head.mPrev == node) return;
+
+		node.mPrev.mNext = node.mNext;
+		node.mNext.mPrev = node.mPrev;
+		node.mPrev = head.mPrev;
+		node.mNext = head;
+		head.mPrev.mNext = node;
+		head.mPrev = node;
+	}
+
+	/**
+	 * Must hold the eviction lock.
+	 */
+	private void unlink(Node<K, V> node) {
+		if (!node.mLinked) return;
+
+		node.mPrev.mNext = node.mNext;
+		node.mNext.mPrev = node.mPrev;
+		node.mPrev = null;
+		node.mNext = null;
+		node.mLinked = false;
+		mSize -= node.mSize;
+		if (node.mInWindow) mWindowSize -= node.mSize;
+	}
+
+	private static int ceilingPowerOfTwo(int x) {
+		int powerOfTwo = 1;
+		while (powerOfTwo < x) powerOfTwo <<= 1;
+		return powerOfTwo;
+	}
+
+	private static final class Node<K, V> {
+		final K mKey;
+		final V mValue;
+		final int mSize;
+
+		// Guarded by the eviction lock
+		Node<K, V> mPrev;
+		Node<K, V> mNext;
+		boolean mLinked;
+		boolean mInWindow;
+
+		Node(K key, V value, int size) {
+			mKey = key;
+			mValue = value;
+			mSize = size;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> ReadBuffer<K, V>[] newReadBuffers(int count) {
+		// Arrays of a generic type can't be created directly
+		ReadBuffer<K, V>[] buffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[count];
+		for (int i = 0; i < count; i++) {
+			buffers[i] = new ReadBuffer<K, V>();
+		}
+		return buffers;
+	}
+
+	private static final class ReadBuffer<K, V> {
+		final AtomicLong mWriteCount = new AtomicLong();
+		final AtomicReferenceArray<Node<K, V>> mNodes = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+		// Only written with the eviction lock held
+		volatile long mReadCount;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The second tier of a {@link MemoryCache}: a LRU cache of soft references,
+ * bounded by the total size of its entries like {@link SizedLruCache}. The
+ * least recently used entries are pushed out once the bound is reached, so
+ * what is kept does not depend on the garbage collector, which only gets to
+ * clear entries when memory runs out. Cleared entries are purged through a
+ * ReferenceQueue at every operation instead of lingering until their key is
+ * looked up again.
+ *
+ * All methods are synchronized, the tier is only reached on misses of the
+ * first one.
+ */
+abstract class SoftLruCache<K, V> {
+	private final LinkedHashMap<K, Entry<K, V>> mMap = new LinkedHashMap<K, Entry<K, V>>(16, 0.75f, true);
+	private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+	private final int mMaxSize;
+
+	// Guarded by this
+	private int mSize;
+	private long mEvictionCount;
+	private long mCollectedCount;
+
+	/**
+	 * @param maxSize the maximum total size of the entries, or 0 to keep none
+	 */
+	SoftLruCache(int maxSize) {
+		if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0");
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @return the value, or null if it is not cached or has been cleared
+	 */
+	synchronized V get(K key) {
+		purgeCleared();
+		Entry<K, V> entry = mMap.get(key);
+		return entry == null ? null : entry.get();
+	}
+
+	/**
+	 * Caches the value, then pushes out the least recently used entries
+	 * until the tier fits its bound. A value larger than the bound is not
+	 * kept.
+	 */
+	synchronized void put(K key, V value, int size) {
+		purgeCleared();
+		if (size > mMaxSize) {
+			remove(key);
+			return;
+		}
+
+		Entry<K, V> previous = mMap.put(key, new Entry<K, V>(key, value, size, mQueue));
+		if (previous != null) mSize -= previous.mSize;
+		mSize += size;
+		evict(mMaxSize);
+	}
+
+	synchronized void remove(K key) {
+		Entry<K, V> entry = mMap.remove(key);
+		if (entry != null) mSize -= entry.mSize;
+	}
+
+	/**
+	 * Pushes out the least recently used entries until the total size is at
+	 * most maxSize.
+	 */
+	synchronized void trimToSize(int maxSize) {
+		purgeCleared();
+		evict(maxSize);
+	}
+
+	/**
+	 * Drops every entry for which {@link #isInUse(Object, Object)} returns
+	 * false.
+	 */
+	synchronized void trimToInUse() {
+		purgeCleared();
+		for (Iterator<Entry<K, V>> it = mMap.values().iterator(); it.hasNext();) {
+			Entry<K, V> entry = it.next();
+			V value = entry.get();
+			if (value == null || !isInUse(entry.mKey, value)) {
+				it.remove();
+				mSize -= entry.mSize;
+			}
+		}
+	}
+
+	synchronized void clear() {
+		mMap.clear();
+		mSize = 0;
+		// The references of the removed entries may still be enqueued
+		while (mQueue.poll() != null) { }
+	}
+
+	/**
+	 * @return the total size of the entries, including those cleared since
+	 * the last operation
+	 */
+	synchronized int size() {
+		return mSize;
+	}
+
+	int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the number of entries pushed out by the bound
+	 */
+	synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * @return the number of entries cleared by the garbage collector
+	 */
+	synchronized long getCollectedCount() {
+		purgeCleared();
+		return mCollectedCount;
+	}
+
+	/**
+	 * Called with the lock held by {@link #trimToInUse()}.
+	 */
+	abstract protected boolean isInUse(K key, V value);
+
+	/**
+	 * Must hold the lock.
+	 */
+	private void purgeCleared() {
+		Object reference;
+		while ((reference = mQueue.poll()) != null) {
+			Entry<?, ?> entry = (Entry<?, ?>) reference;
+			// The key may have been cached again since
+			if (mMap.get(entry.mKey) == entry) {
+				mMap.remove(entry.mKey);
+				mSize -= entry.mSize;
+				mCollectedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Must hold the lock.
+	 */
+	private void evict(int maxSize) {
+		Iterator<Entry<K, V>> it = mMap.values().iterator();
+		while (mSize > maxSize && it.hasNext()) {
+			Entry<K, V> eldest = it.next();
+			it.remove();
+			mSize -= eldest.mSize;
+			mEvictionCount++;
+		}
+	}
+
+	private static final class Entry<K, V> extends SoftReference<V> {
+		final K mKey;
+		final int mSize;
+
+		Entry(K key, V value, int size, ReferenceQueue<V> queue) {
+			super(value, queue);
+			mKey = key;
+			mSize = size;
+		}
+	}
+}
@@ -16,34 +16,126 @@
 
 package com.bitfable.ammocache.download;
 
-import java.lang.ref.SoftReference;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import com.bitfable.ammocache.cache.BitmapPool;
+import com.bitfable.ammocache.cache.DiskLruCache;
+import com.bitfable.ammocache.cache.EncodedMemoryCache;
+import com.bitfable.ammocache.cache.MemoryCache;
+import com.bitfable.ammocache.cache.SizedLruCache;
+import com.bitfable.ammocache.io.FlushedInputStream;
+import com.bitfable.ammocache.loader.ImageLoader;
+import com.bitfable.ammocache.loader.ImageSource;
+import com.bitfable.ammocache.transform.Transformation;
+import com.bitfable.ammocache.transform.Transformations;
+
 /**
  * Extends this class to create an image downloader. Images will automatically
- * be cached in-memory. The in-memory cache size item count limit can be
- * configured by changing {@link #HARD_CACHE_CAPACITY}. In-memory LRU cache can
- * be set to auto-purge itself to save meory. This is configured with
- * {@link #DELAY_BEFORE_PURGE}.
+ * be cached in-memory, in a {@link BitmapCache}. The in-memory LRU cache is
+ * bounded by the number of bytes used by its bitmaps. By default it is shared
+ * by every downloader of the process, see {@link BitmapCache#getShared(Context)},
+ * and uses 1/{@link #DEFAULT_HARD_CACHE_MEMORY_CLASS_DIVISOR} of the
+ * application's memory class. A downloader can be given its own budget with
+ * {@link #AbstractImageDownloader(Context, int)}, or a namespace of a shared
+ * cache with {@link #AbstractImageDownloader(Context, BitmapCache, String, long)}.
+ * Forward {@link #onTrimMemory(int)} and {@link #onLowMemory()}
+ * to release memory gradually when the system needs it. The in-memory cache
+ * can also purge itself after a period without requests, configured with
+ * {@link #setIdlePurgeDelay(long)}. Neither releases images still shown.
+ * 
+ * Images are also cached on disk, in a journaled LRU cache of
+ * {@link #DEFAULT_DISK_CACHE_SIZE} bytes by default shared by every
+ * downloader of the process, which is read on the
+ * background thread before {@link #download(DownloadRequest)} is called. Implementations store downloaded bytes in it with
+ * {@link #addToDiskCache(String, byte[], int, int)}. When enabled with
+ * {@link BitmapCache#setEncodedCacheMaxBytes(int)}, the encoded bytes are also
+ * kept in memory and decoded from there before the disk is read.
+ * 
+ * Images are decoded at the size of the ImageView they are shown in, or at
+ * the size given in {@link DownloadOptions}, using the largest power-of-two
+ * downsampling that keeps them at least that large. See {@link BitmapDecoder}.
+ * The config they are decoded with is set per request with
+ * {@link DownloadOptions#bitmapConfig}, or for the downloader with
+ * {@link #setDefaultBitmapConfig(Bitmap.Config)}, and opaque images can be
+ * decoded as RGB_565 when memory is tight, see {@link #setAutoRgb565(boolean)}.
+ * The config, and whether opaque images were decoded as RGB_565, are part
+ * of the in-memory cache key.
+ * They can then be cropped or rounded by {@link DownloadOptions#transformations}
+ * on the background thread, and only the result is cached in memory.
+ * 
+ * Bitmaps evicted from the in-memory LRU cache that are not displayed by any
+ * view are kept in a {@link BitmapPool}, of a quarter of the in-memory cache
+ * size, and new images are decoded into them when the
+ * dimensions match. See {@link #getBitmapPool()}.
+ * 
+ * Concurrent requests for the same key, from any number of views, share a
+ * single download. It is only cancelled once none of the views are waiting
+ * for it anymore.
+ * 
+ * Consumers without a view, such as notifications or widgets, load images
+ * into a {@link Target} with {@link #load(String, Target, DownloadOptions)},
+ * and worker threads can wait for them with {@link #get(String)}. Both share
+ * the caches and downloads of the views.
+ * 
+ * Downloads run on an {@link ImageDispatcher} owned by the downloader, with
+ * {@link ImageDispatcher#DEFAULT_THREAD_COUNT} background threads that load
+ * the most recently requested images first. It can be configured and observed
+ * through {@link #getDispatcher()}.
+ * 
+ * Images that are about to be shown, such as the next rows of a list, can be
+ * loaded ahead of time with {@link #prefetch(Collection)} or
+ * {@link #prefetch(Collection, int, int)}. See {@link #cancelPrefetches()}.
+ * 
+ * Loads can be held back while a list is flung with {@link #pause()}, or
+ * {@link #pause(Object)} for the loads of one {@link DownloadOptions#tag}, and
+ * {@link PauseOnScrollListener} does it automatically.
+ * 
+ * Every image has an expiry, from the Cache-Control or Expires headers of
+ * its response or {@link #setDefaultMaxAge(long)}. Once expired, it is
+ * revalidated with a conditional request using its ETag or Last-Modified
+ * validators. When the server answers that it did not change, the bitmap
+ * still in memory is used again, or the bytes on disk are decoded again.
+ * 
+ * Hits and misses of each cache, latencies and byte counts are available
+ * from {@link #getStats()}, or can be pushed to a {@link StatsListener}.
  * 
  * See {@link UrlImageDownloader} for an example implementation
  * 
- * The {@link AsyncTask} workflow and in-memory cache is based on code from
+ * The download workflow and in-memory cache is based on code from
  * Gilles Debunne:
  * 
  * http://android-developers.blogspot.com/2010/07/multithreading-for-performance.html
@@ -52,32 +144,178 @@ import android.widget.ImageView;
  */
 abstract public class AbstractImageDownloader {
 	/**
-	 * Minimum amount of time between updates for the {@link ProgressListener}
+	 * Progress updates of all downloads are delivered together at most once
+	 * per frame of this length
 	 */
-	private static final int PUBLISH_PROGRESS_TIME_THRESHOLD_MILLI = 500;
+	private static final int PROGRESS_FRAME_MILLIS = 16;
 	
 	/**
-	 * Max number of items allowed inside in-memory LRU cache
+	 * Fraction of the application's memory class used by the in-memory LRU
+	 * cache when no explicit budget is given
 	 */
-    private static final int HARD_CACHE_CAPACITY = 64;
-    
+    public static final int DEFAULT_HARD_CACHE_MEMORY_CLASS_DIVISOR = 8;
+
+    // ComponentCallbacks2 levels, which is not available before Ice Cream
+    // Sandwich
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    private static final int TRIM_MEMORY_BACKGROUND = 40;
+    private static final int TRIM_MEMORY_MODERATE = 60;
+    private static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /**
+     * Maximum number of bytes used by the disk cache when no explicit budget
+     * is given
+     */
+    public static final long DEFAULT_DISK_CACHE_SIZE = 10 * 1024 * 1024; // 10 MiB
+
+    /**
+     * Name of the disk cache directory inside the application cache directory
+     */
+    private static final String DISK_CACHE_DIR_NAME = "ammocache";
+
+    /**
+     * Bump this when the format of the stored bytes changes to discard
+     * existing disk cache entries
+     */
+    private static final int DISK_CACHE_VERSION = 1;
+
+    private static final int STREAM_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Minimum amount of time between updates for the {@link StatsListener}
+     */
+    private static final int STATS_UPDATE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * How long images whose response did not say can be used before they
+     * are revalidated, when no other default is set
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000; // 1 day
+
+    /**
+     * Prefix of the disk cache keys of the validators of an image, stored
+     * next to its bytes
+     */
+    private static final String VALIDATORS_KEY_PREFIX = "validators:";
+
+    /**
+     * Memory class, in MiB, at or below which memory is always considered
+     * tight, see {@link #setAutoRgb565(boolean)}
+     */
+    private static final int LOW_MEMORY_CLASS_MB = 32;
+
     /**
-     * Amount of time of inactivity to wait before purging in-memory cache, set
-     * to -1 for no auto-purging
+     * Percentage of the maximum heap in use above which memory is considered
+     * tight
      */
-    private static final int DELAY_BEFORE_PURGE = -1; // 10 * 1000; // in milliseconds
+    private static final int TIGHT_HEAP_PERCENT = 75;
 
 	private static final String TAG = "AbstractImageDownloader";
 
 	public static final String KEY_PROGRESS = "KEY_PROGRESS";
 	public static final String KEY_ELAPSED_TIME = "KEY_ELAPSED_TIME";
 	private Handler mHandler;
+	private ImageDispatcher mDispatcher;
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "AmmoCache #" + mCount.getAndIncrement());
+		}
+	};
 
 	@SuppressWarnings("unused")
 	private AbstractImageDownloader() { }
 	
+	/**
+	 * Creates a downloader attached to the in-memory cache shared by the
+	 * process, see {@link BitmapCache#getShared(Context)}
+	 */
 	protected AbstractImageDownloader(Context context) {
+		this(context, BitmapCache.getShared(context), null, DEFAULT_DISK_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a downloader with its own in-memory cache.
+	 * @param hardCacheMaxBytes the maximum number of bytes the bitmaps in the
+	 * in-memory LRU cache can use
+	 */
+	protected AbstractImageDownloader(Context context, int hardCacheMaxBytes) {
+		this(context, hardCacheMaxBytes, DEFAULT_DISK_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a downloader with its own in-memory cache.
+	 * @param hardCacheMaxBytes the maximum number of bytes the bitmaps in the
+	 * in-memory LRU cache can use
+	 * @param diskCacheMaxBytes the maximum number of bytes used by the disk
+	 * cache, or 0 to disable it. The disk cache is shared by every downloader
+	 * of the process, and the first one to open it sets its budget.
+	 */
+	protected AbstractImageDownloader(Context context, int hardCacheMaxBytes, long diskCacheMaxBytes) {
+		this(context, new BitmapCache(hardCacheMaxBytes), null, diskCacheMaxBytes);
+	}
+
+	/**
+	 * @param bitmapCache the in-memory cache, which may be shared with other
+	 * downloaders
+	 * @param namespace isolates the images of this downloader from those of
+	 * the other downloaders attached to the cache, or null to share them
+	 * @param diskCacheMaxBytes the maximum number of bytes used by the disk
+	 * cache, or 0 to disable it. The disk cache is shared by every downloader
+	 * of the process, and the first one to open it sets its budget.
+	 */
+	protected AbstractImageDownloader(Context context, BitmapCache bitmapCache, String namespace,
+			long diskCacheMaxBytes) {
 		mHandler = new Handler(context.getMainLooper());
+		mDispatcher = new ImageDispatcher(ImageDispatcher.DEFAULT_THREAD_COUNT, sThreadFactory);
+		File cacheDir = context.getCacheDir();
+		if (cacheDir != null && diskCacheMaxBytes > 0) {
+			mDiskCacheDir = new File(cacheDir, DISK_CACHE_DIR_NAME);
+			mDiskCacheMaxBytes = diskCacheMaxBytes;
+		} else {
+			Log.w(TAG, "disk cache is disabled");
+		}
+
+		mBitmapCache = bitmapCache;
+		mNamespace = namespace;
+		mMemoryCache = bitmapCache.getMemoryCache();
+		mBitmapPool = bitmapCache.getBitmapPool();
+		mValidators = bitmapCache.getValidators();
+
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		mLowMemoryClass = activityManager.getMemoryClass() <= LOW_MEMORY_CLASS_MB;
+	}
+
+	/**
+	 * @return 1/{@link #DEFAULT_HARD_CACHE_MEMORY_CLASS_DIVISOR} of the
+	 * application's memory class, in bytes
+	 */
+	public static int getDefaultHardCacheMaxBytes(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+		return memoryClassBytes / DEFAULT_HARD_CACHE_MEMORY_CLASS_DIVISOR;
+	}
+
+	/**
+	 * @return the number of bytes used by the pixels of the bitmap
+	 */
+	public static int getBitmapByteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+			return bitmap.getByteCount();
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
 	}
 	
 	public void download(String key, ImageView imageView) {
@@ -93,52 +331,545 @@ abstract public class AbstractImageDownloader {
 	}
 	
 	public void download(String key, ImageView imageView, Bitmap defaultBitmap, ProgressListener progressListener) {
+		download(key, imageView, defaultBitmap, progressListener, ImageDispatcher.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * @param priority the priority of the download if the image is not
+	 * cached, such as {@link ImageDispatcher#PRIORITY_HIGH}. Downloads with
+	 * the same priority run most recent first.
+	 */
+	public void download(String key, ImageView imageView, Bitmap defaultBitmap, ProgressListener progressListener, int priority) {
+		DownloadOptions options = new DownloadOptions();
+		options.defaultBitmap = defaultBitmap;
+		options.progressListener = progressListener;
+		options.priority = priority;
+		download(key, imageView, options);
+	}
+
+	/**
+	 * Downloads the image into the disk cache without decoding it, at
+	 * {@link ImageDispatcher#PRIORITY_LOW}. Must be called on the main thread.
+	 * See {@link #prefetch(Collection)}.
+	 */
+	public void prefetch(String key) {
+		prefetch(Collections.singletonList(key));
+	}
+
+	/**
+	 * Downloads the images into the disk cache without decoding them, at
+	 * {@link ImageDispatcher#PRIORITY_LOW}, so that they can be decoded at
+	 * any size later. A download of the same key waits for its prefetch
+	 * instead of starting another one, and promotes it to its own priority.
+	 * Keys already on disk are skipped. Must be called on the main thread.
+	 */
+	public void prefetch(Collection<String> keys) {
+		resetPurgeTimer();
+		for (String key : keys) {
+			if (key == null || mPrefetchTasks.containsKey(key) || isDownloading(key)) continue;
+
+			ImageDownloadTask task = new ImageDownloadTask(key, key, 0, 0, true, ImageDispatcher.PRIORITY_LOW);
+			task.mPrefetch = true;
+			mPrefetchTasks.put(key, task);
+			dispatch(task);
+		}
+	}
+
+	/**
+	 * Loads the image into the in-memory cache at the given size, at
+	 * {@link ImageDispatcher#PRIORITY_LOW}. Must be called on the main thread.
+	 * See {@link #prefetch(Collection, int, int)}.
+	 */
+	public void prefetch(String key, int targetWidth, int targetHeight) {
+		prefetch(Collections.singletonList(key), targetWidth, targetHeight);
+	}
+
+	/**
+	 * Loads the images into the in-memory and disk caches, decoded at the
+	 * given size, at {@link ImageDispatcher#PRIORITY_LOW}. The size should be
+	 * the one of the views the images will be shown in, so that their
+	 * downloads find them in the cache. A download of the same key and size
+	 * shares the prefetch and promotes it to its own priority. Must be called
+	 * on the main thread.
+	 */
+	public void prefetch(Collection<String> keys, int targetWidth, int targetHeight) {
+		resetPurgeTimer();
+		targetWidth = Math.max(targetWidth, 0);
+		targetHeight = Math.max(targetHeight, 0);
+		boolean opaqueAsRgb565 = shouldDecodeOpaqueAsRgb565(null);
+		for (String key : keys) {
+			if (key == null) continue;
+
+			String cacheKey = DownloadRequest.getCacheKey(key, targetWidth, targetHeight)
+					+ getConfigKey(null, opaqueAsRgb565);
+			if (mInFlightTasks.containsKey(cacheKey) || getFreshBitmapFromCache(key, cacheKey) != null) continue;
+
+			ImageDownloadTask task = new ImageDownloadTask(key, cacheKey, targetWidth, targetHeight,
+					false, ImageDispatcher.PRIORITY_LOW);
+			task.setBitmapConfig(null, opaqueAsRgb565);
+			task.mPrefetch = true;
+			mInFlightTasks.put(cacheKey, task);
+			executeTask(task);
+		}
+	}
+
+	/**
+	 * Downloads the images into the disk cache without decoding them, like
+	 * {@link #prefetch(Collection)}, but as one batch handed to
+	 * {@link #downloadAll(List)} on the calling thread, and returns once
+	 * every image has been handled. Keys already on disk and fresh, and keys
+	 * that are not cached on disk, are skipped. Must not be called on the main
+	 * thread.
+	 * @throws InterruptedIOException if the thread was interrupted
+	 */
+	public void prefetchAll(Collection<String> keys) throws InterruptedIOException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			throw new IllegalStateException("prefetchAll() must not be called on the main thread");
+		}
+		DiskLruCache diskCache = getDiskCache();
+		if (diskCache == null) return;
+
+		long now = System.currentTimeMillis();
+		EncodedMemoryCache encodedCache = mBitmapCache.getEncodedCache();
+		List<DownloadRequest> requests = new ArrayList<DownloadRequest>(keys.size());
+		List<CacheValidators> storedValidators = new ArrayList<CacheValidators>(keys.size());
+		for (String key : keys) {
+			if (key == null || !shouldCacheOnDisk(key)) continue;
+
+			CacheValidators validators = getStoredValidators(key);
+			boolean stale = validators != null && validators.isExpired(now);
+			if (diskCache.contains(key) && !stale) continue;
+
+			DownloadRequest request = new DownloadRequest(key, 0, 0, true, null);
+			if (stale && validators.canRevalidate()) request.setCachedValidators(validators);
+			// The bytes may change, they are cached again once decoded
+			if (encodedCache != null) encodedCache.remove(getEncodedCacheKey(key));
+			requests.add(request);
+			storedValidators.add(validators);
+		}
+		if (requests.isEmpty()) return;
+
+		downloadAll(requests);
+		for (int i = 0; i < requests.size(); i++) {
+			DownloadRequest request = requests.get(i);
+			mStats.mBytesDownloaded.addAndGet(request.getBytesDownloaded());
+			if (request.isNotModified()) mStats.mNotModified.incrementAndGet();
+			storeResponseValidators(request, storedValidators.get(i), true);
+		}
+	}
+
+	/**
+	 * Downloads disk-only requests, see {@link DownloadRequest#isDiskOnly()},
+	 * on the thread calling {@link #prefetchAll(Collection)}. Implementations
+	 * can fetch them as a batch, by default each is given to
+	 * {@link #download(DownloadRequest)} in turn.
+	 * @throws InterruptedIOException if the thread was interrupted
+	 */
+	protected void downloadAll(List<DownloadRequest> requests) throws InterruptedIOException {
+		for (DownloadRequest request : requests) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("interrupted while prefetching");
+			}
+			download(request);
+		}
+	}
+
+	/**
+	 * Cancels the prefetches that no download is waiting for. Must be called
+	 * on the main thread.
+	 */
+	public void cancelPrefetches() {
+		for (Iterator<ImageDownloadTask> it = mPrefetchTasks.values().iterator(); it.hasNext();) {
+			ImageDownloadTask task = it.next();
+			if (!task.hasDependents()) {
+				it.remove();
+				task.cancel();
+			}
+		}
+
+		for (Iterator<ImageDownloadTask> it = mInFlightTasks.values().iterator(); it.hasNext();) {
+			ImageDownloadTask task = it.next();
+			if (task.mPrefetch && !task.hasTargets()) {
+				it.remove();
+				task.cancel();
+			}
+		}
+	}
+
+	public void download(String key, ImageView imageView, DownloadOptions options) {
         resetPurgeTimer();
-        Bitmap bitmap = getBitmapFromCache(key);
+        scheduleStatsUpdate();
+        int targetWidth = getTargetSize(options.targetWidth, imageView, true);
+        int targetHeight = getTargetSize(options.targetHeight, imageView, false);
+        boolean opaqueAsRgb565 = shouldDecodeOpaqueAsRgb565(options.bitmapConfig);
+        String cacheKey = key == null ? null : getCacheKey(key, targetWidth, targetHeight, options, opaqueAsRgb565);
+        Bitmap bitmap = getFreshBitmapFromCache(key, cacheKey);
 
         if (bitmap == null) {
-            forceDownload(key, imageView, defaultBitmap, progressListener);
+            forceDownload(key, cacheKey, targetWidth, targetHeight, opaqueAsRgb565, imageView, options);
         } else {
-            cancelPotentialDownload(key, imageView);
-            imageView.setImageBitmap(bitmap);
-            if (progressListener != null) progressListener.onProgressUpdated(100, 0L);
+            cancelPotentialDownload(cacheKey, imageView);
+            setImageBitmap(imageView, bitmap);
+            if (options.progressListener != null) options.progressListener.onProgressUpdated(100, 0L);
         }
 	}	
 
+	/**
+	 * Loads the image into a {@link Target} instead of a view, through the
+	 * same caches and downloads. See {@link #load(String, Target, DownloadOptions)}.
+	 */
+	public void load(String key, Target target) {
+		load(key, target, new DownloadOptions());
+	}
+
+	/**
+	 * Loads the image into a {@link Target} instead of a view, through the
+	 * same caches and downloads. A load of the same key and size shares the
+	 * download of the views and targets already waiting for it. The image is
+	 * decoded at its original size unless the options give one. A load
+	 * already pending for the target is cancelled. Bitmaps given to targets
+	 * are never put into the bitmap pool. Must be called on the main thread.
+	 */
+	public void load(String key, Target target, DownloadOptions options) {
+		if (target == null) throw new NullPointerException("target == null");
+
+		resetPurgeTimer();
+		scheduleStatsUpdate();
+		cancel(target);
+		if (key == null) {
+			target.onImageFailed();
+			return;
+		}
+
+		int targetWidth = Math.max(options.targetWidth, 0);
+		int targetHeight = Math.max(options.targetHeight, 0);
+		boolean opaqueAsRgb565 = shouldDecodeOpaqueAsRgb565(options.bitmapConfig);
+		String cacheKey = getCacheKey(key, targetWidth, targetHeight, options, opaqueAsRgb565);
+		Bitmap bitmap = getFreshBitmapFromCache(key, cacheKey);
+		if (bitmap != null) {
+			mBitmapCache.setHandedOut(bitmap);
+			if (options.progressListener != null) options.progressListener.onProgressUpdated(100, 0L);
+			target.onImageLoaded(bitmap);
+			return;
+		}
+
+		ImageDownloadTask task = mInFlightTasks.get(cacheKey);
+		boolean isNewTask = task == null;
+		if (isNewTask) {
+			task = newTask(key, cacheKey, targetWidth, targetHeight, opaqueAsRgb565, options);
+		} else if (options.priority > task.getPriority()) {
+			mDispatcher.setPriority(task, options.priority);
+		}
+		task.mPrefetch = false;
+		task.addTarget(target, options.progressListener);
+		mTargetTasks.put(target, task);
+		if (isNewTask) executeTask(task);
+	}
+
+	/**
+	 * Stops delivering the image to the target. The download is cancelled
+	 * if no view or other target is waiting for it. Must be called on the
+	 * main thread.
+	 */
+	public void cancel(Target target) {
+		ImageDownloadTask task = mTargetTasks.remove(target);
+		if (task == null) return;
+
+		task.removeTarget(target);
+		if (!task.hasTargets()) cancelTask(task);
+	}
+
+	/**
+	 * Loads the image and waits for it, for worker threads such as
+	 * background sync jobs. See {@link #get(String, DownloadOptions)}.
+	 */
+	public Bitmap get(String key) throws InterruptedException {
+		return get(key, new DownloadOptions());
+	}
+
+	/**
+	 * Loads the image like {@link #load(String, Target, DownloadOptions)},
+	 * through the same caches and downloads as views, and waits for it. Must
+	 * not be called on the main thread, nor on the threads of the
+	 * downloader's {@link ImageDispatcher}. The bitmap must not be modified
+	 * or recycled.
+	 * @return the image, or null if it could not be loaded
+	 * @throws InterruptedException if the thread was interrupted while
+	 * waiting, which cancels the load
+	 */
+	public Bitmap get(final String key, final DownloadOptions options) throws InterruptedException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			throw new IllegalStateException("get() must not be called on the main thread");
+		}
+
+		final BlockingTarget target = new BlockingTarget();
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				load(key, target, options);
+			}
+		});
+
+		try {
+			return target.await();
+		} catch (InterruptedException e) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					cancel(target);
+				}
+			});
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the key of the image in the in-memory cache, for the target
+	 * size, config and transformations
+	 */
+	private String getCacheKey(String key, int targetWidth, int targetHeight, DownloadOptions options,
+			boolean opaqueAsRgb565) {
+		// Translucent transformations turn any config into ARGB_8888
+		String configKey = Transformations.isTranslucent(options.transformations)
+				? "" : getConfigKey(options.bitmapConfig, opaqueAsRgb565);
+		return DownloadRequest.getCacheKey(key, targetWidth, targetHeight)
+				+ configKey + Transformations.getKey(options.transformations);
+	}
+
+	/**
+	 * The config part of the cache identity of an image is the config it is
+	 * decoded with and whether opaque images are decoded as RGB_565 instead.
+	 * A default request decoded as ARGB_8888 therefore shares its entry with
+	 * a request asking for ARGB_8888 explicitly.
+	 * @param requested the config of the request, or null for the default
+	 * @param opaqueAsRgb565 see {@link #shouldDecodeOpaqueAsRgb565(Bitmap.Config)}
+	 * @return the part of the cache key for the config, empty for ARGB_8888
+	 */
+	private String getConfigKey(Bitmap.Config requested, boolean opaqueAsRgb565) {
+		Bitmap.Config config = requested != null ? requested : mDefaultBitmapConfig;
+		String configKey = config == Bitmap.Config.ARGB_8888 ? "" : "#" + config.name();
+		// Decoding opaque images as RGB_565 changes nothing for RGB_565
+		return opaqueAsRgb565 && config != Bitmap.Config.RGB_565 ? configKey + "#opaque565" : configKey;
+	}
+
+	/**
+	 * Decided once per request, so that the task decodes the image the way
+	 * its cache key says.
+	 * @return true if opaque images of a request for the config should be
+	 * decoded as RGB_565, see {@link #setAutoRgb565(boolean)}
+	 */
+	private boolean shouldDecodeOpaqueAsRgb565(Bitmap.Config requested) {
+		return requested == null && mAutoRgb565 && isMemoryTight();
+	}
+
+	/**
+	 * @return the requested size if one was given, otherwise the measured
+	 * size of the view, its layout size, or 0 if neither is known yet
+	 */
+	private static int getTargetSize(int requestedSize, ImageView imageView, boolean isWidth) {
+		if (requestedSize != DownloadOptions.SIZE_FROM_VIEW) return Math.max(requestedSize, 0);
+
+		int measuredSize = isWidth ? imageView.getWidth() : imageView.getHeight();
+		if (measuredSize > 0) return measuredSize;
+
+		ViewGroup.LayoutParams params = imageView.getLayoutParams();
+		if (params != null) {
+			int layoutSize = isWidth ? params.width : params.height;
+			// MATCH_PARENT and WRAP_CONTENT are negative
+			if (layoutSize > 0) return layoutSize;
+		}
+
+		return 0;
+	}
+
     /**
      * Same as download but the image is always downloaded and the cache is not used.
      * Kept private at the moment as its interest is not clear.
      */
-    private void forceDownload(String key, ImageView imageView, Bitmap defaultBitmap, ProgressListener progressListener) {
+    private void forceDownload(String key, String cacheKey, int targetWidth, int targetHeight,
+    		boolean opaqueAsRgb565, ImageView imageView, DownloadOptions options) {
         // State sanity: key is guaranteed to never be null in DownloadedDrawable and cache keys.
     	if (key == null) {
-            imageView.setImageDrawable(null);
+            setImageDrawable(imageView, null);
             return;
         }
 
-        if (cancelPotentialDownload(key, imageView)) {
-	         ImageDownloadTask task = new ImageDownloadTask(key, imageView, progressListener);
+        if (cancelPotentialDownload(cacheKey, imageView)) {
+        	// Attach to the download of the same key and size started by another view
+        	ImageDownloadTask task = mInFlightTasks.get(cacheKey);
+        	boolean isNewTask = task == null;
+        	if (isNewTask) {
+        		task = newTask(key, cacheKey, targetWidth, targetHeight, opaqueAsRgb565, options);
+        	} else if (options.priority > task.getPriority()) {
+        		mDispatcher.setPriority(task, options.priority);
+        	}
+        	task.mPrefetch = false;
+        	task.addTarget(imageView, options.progressListener);
 	        
 	         // Default cyan background drawable
 	         Drawable downloadedDrawable;
-	         if (defaultBitmap == null) {
+	         if (options.defaultBitmap == null) {
 	        	 downloadedDrawable = new DownloadedDrawable(task);
 	         } else {
-	        	 downloadedDrawable = new DefaultImageDrawable(task, defaultBitmap);
+	        	 downloadedDrawable = new DefaultImageDrawable(task, options.defaultBitmap);
 	         }
 	         
-	         imageView.setImageDrawable(downloadedDrawable);
-	         task.execute();
+	         setImageDrawable(imageView, downloadedDrawable);
+	         if (isNewTask) executeTask(task);
         }
     }
 
-    private static boolean cancelPotentialDownload(String key, ImageView imageView) {
+    /**
+     * Creates the task loading the image for the options, and registers it
+     * so that other views and targets can share it
+     */
+    private ImageDownloadTask newTask(String key, String cacheKey, int targetWidth, int targetHeight,
+    		boolean opaqueAsRgb565, DownloadOptions options) {
+    	ImageDownloadTask task = new ImageDownloadTask(key, cacheKey, targetWidth, targetHeight, false, options.priority);
+    	task.mTag = options.tag;
+    	task.mTransformations = options.transformations;
+    	task.setBitmapConfig(options.bitmapConfig, opaqueAsRgb565);
+    	mInFlightTasks.put(cacheKey, task);
+    	return task;
+    }
+
+    /**
+     * Runs the task, or queues it behind the prefetch of the same key so that
+     * it is decoded from the disk cache instead of downloaded twice.
+     */
+    private void executeTask(ImageDownloadTask task) {
+    	ImageDownloadTask prefetchTask = mPrefetchTasks.get(task.mRequest.getKey());
+    	if (prefetchTask == null) {
+    		dispatch(task);
+    		return;
+    	}
+
+    	prefetchTask.mDependents.add(task);
+    	if (task.getPriority() > prefetchTask.getPriority()) {
+    		mDispatcher.setPriority(prefetchTask, task.getPriority());
+    	}
+    }
+
+    /**
+     * Hands the task to the dispatcher, or holds it back until
+     * {@link #resume()} if its loads are paused
+     */
+    private void dispatch(ImageDownloadTask task) {
+    	if (isPaused(task.mTag)) {
+    		mPausedTasks.add(task);
+    	} else {
+    		mDispatcher.execute(task);
+    	}
+    }
+
+    private boolean isPaused(Object tag) {
+    	return mPausedAll || (tag != null && mPausedTags.contains(tag));
+    }
+
+    /**
+     * Stops starting loads until {@link #resume()}, for instance while a
+     * list is flung. Loads already running finish, loads waiting for a
+     * thread are held back with the new ones. Images in memory are still
+     * shown right away. Must be called on the main thread.
+     */
+    public void pause() {
+    	mPausedAll = true;
+    	holdBackQueuedTasks();
+    }
+
+    /**
+     * Stops starting the loads requested with this {@link DownloadOptions#tag}
+     * until {@link #resume(Object)}, see {@link #pause()}. Must be called on
+     * the main thread.
+     */
+    public void pause(Object tag) {
+    	if (tag == null) throw new NullPointerException("tag == null");
+
+    	mPausedTags.add(tag);
+    	holdBackQueuedTasks();
+    }
+
+    /**
+     * Starts the loads held back by {@link #pause()}, unless they are paused
+     * by their tag. Must be called on the main thread.
+     */
+    public void resume() {
+    	mPausedAll = false;
+    	dispatchResumedTasks();
+    }
+
+    /**
+     * Starts the loads held back by {@link #pause(Object)}, unless
+     * {@link #pause()} is in effect. Must be called on the main thread.
+     */
+    public void resume(Object tag) {
+    	mPausedTags.remove(tag);
+    	dispatchResumedTasks();
+    }
+
+    public boolean isPaused() {
+    	return mPausedAll;
+    }
+
+    /**
+     * Takes the tasks that are paused now but still waiting for a thread out
+     * of the dispatcher. They keep their place in the queue for when they are
+     * resumed, see {@link ImageDispatcher#requeue(ImageDispatcher.Task)}.
+     */
+    private void holdBackQueuedTasks() {
+    	holdBackQueuedTasks(mInFlightTasks.values());
+    	holdBackQueuedTasks(mPrefetchTasks.values());
+    }
+
+    private void holdBackQueuedTasks(Collection<ImageDownloadTask> tasks) {
+    	for (ImageDownloadTask task : tasks) {
+    		if (isPaused(task.mTag) && mDispatcher.remove(task)) mPausedTasks.add(task);
+    	}
+    }
+
+    /**
+     * Queues the tasks that are no longer paused from the oldest to the most
+     * recent, so that the last ones requested still run first in LIFO mode
+     */
+    private void dispatchResumedTasks() {
+    	ArrayList<ImageDownloadTask> resumedTasks = new ArrayList<ImageDownloadTask>();
+    	for (Iterator<ImageDownloadTask> it = mPausedTasks.iterator(); it.hasNext();) {
+    		ImageDownloadTask task = it.next();
+    		if (!isPaused(task.mTag)) {
+    			it.remove();
+    			resumedTasks.add(task);
+    		}
+    	}
+    	for (ImageDownloadTask task : resumedTasks) {
+    		mDispatcher.requeue(task);
+    	}
+    }
+
+    /**
+     * @return true if an image is being loaded for the key, at any size
+     */
+    private boolean isDownloading(String key) {
+    	for (ImageDownloadTask task : mInFlightTasks.values()) {
+    		if (task.mRequest.getKey().equals(key)) return true;
+    	}
+    	return false;
+    }
+
+    /**
+     * Detaches the view from the download it is waiting for, if that download
+     * is for another key. The download is cancelled if no other view is
+     * waiting for it.
+     * @return false if the view is already waiting for the key
+     */
+    private boolean cancelPotentialDownload(String key, ImageView imageView) {
 		ImageDownloadTask downloadTask = getDownloadTask(imageView);
 		
 	    if (downloadTask != null) {
 	        if (downloadTask.mKey == null || !downloadTask.mKey.equals(key)) {
-	            downloadTask.cancel(true);
-	            downloadTask.setProgressListener(null);
+	        	downloadTask.removeTarget(imageView);
+	        	if (!downloadTask.hasTargets()) {
+	        		cancelTask(downloadTask);
+	        	}
 	        } else {
 	            // The same image is already being downloaded.
 	            return false;
@@ -147,6 +878,23 @@ abstract public class AbstractImageDownloader {
 	    
 	    return true;
 	}
+
+    private void cancelTask(ImageDownloadTask task) {
+    	if (mInFlightTasks.get(task.mKey) == task) {
+    		mInFlightTasks.remove(task.mKey);
+    	}
+    	task.cancel();
+    }
+	
+	private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+		mBitmapCache.setDisplayed(imageView, bitmap);
+		imageView.setImageBitmap(bitmap);
+	}
+
+	private void setImageDrawable(ImageView imageView, Drawable drawable) {
+		mBitmapCache.setDisplayed(imageView, null);
+		imageView.setImageDrawable(drawable);
+	}
 	
 	private static ImageDownloadTask getDownloadTask(ImageView imageView) {		
 		if (imageView != null) {
@@ -163,100 +911,407 @@ abstract public class AbstractImageDownloader {
 		
 		return null;
 	}
-	
-    private final class ImageDownloadTask extends AsyncTask<Void, Void, Bitmap> {
-		String mKey;
-    	private WeakReference<ImageView> mImageViewReference;
-		private ProgressListener mProgressListener;
-		private long mTimeBegin;
-		private long mLastUpdateTime;
 
-		public ImageDownloadTask(String key, ImageView imageView, ProgressListener progressListener) {
-    		mKey = key;
-    		mImageViewReference = new WeakReference<ImageView>(imageView);
-    		mProgressListener = progressListener;
-    		mTimeBegin = SystemClock.elapsedRealtime();
+	/**
+	 * A view or a {@link Target} waiting for a download, and its progress
+	 * listener
+	 */
+	private static final class Recipient {
+		// Null for targets
+		final WeakReference<ImageView> mImageViewReference;
+		// Null for views
+		final Target mTarget;
+		ProgressListener mProgressListener;
+
+		Recipient(ImageView imageView, Target target, ProgressListener progressListener) {
+			mImageViewReference = imageView == null ? null : new WeakReference<ImageView>(imageView);
+			mTarget = target;
+			mProgressListener = progressListener;
 		}
+	}
+
+	/**
+	 * The target of {@link AbstractImageDownloader#get(String, DownloadOptions)}
+	 */
+	private static final class BlockingTarget implements Target {
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private volatile Bitmap mBitmap;
 
 		@Override
-		protected Bitmap doInBackground(Void... params) {
-			return downloadImage();
+		public void onImageLoaded(Bitmap bitmap) {
+			mBitmap = bitmap;
+			mDone.countDown();
 		}
-		
-		public void publishProgress(final int progress) {
-			if (mProgressListener == null) return;
-			
-			if (progress < 100 && SystemClock.elapsedRealtime() - mLastUpdateTime < PUBLISH_PROGRESS_TIME_THRESHOLD_MILLI) {
-				return;
-			} else {
-				mLastUpdateTime = SystemClock.elapsedRealtime();
+
+		@Override
+		public void onImageFailed() {
+			mDone.countDown();
+		}
+
+		Bitmap await() throws InterruptedException {
+			mDone.await();
+			return mBitmap;
+		}
+	}
+	
+    private final class ImageDownloadTask extends ImageDispatcher.Task
+    		implements DownloadRequest.ProgressPublisher {
+		// The cache key, which includes the target size
+		final String mKey;
+		final DownloadRequest mRequest;
+		// Only accessed on the main thread
+		private final ArrayList<Recipient> mTargets = new ArrayList<Recipient>(1);
+		// Tasks waiting for this disk-only prefetch to finish
+		final ArrayList<ImageDownloadTask> mDependents = new ArrayList<ImageDownloadTask>(0);
+		// True until a view or a target asks for the image
+		boolean mPrefetch;
+		// The tag of the request that started the task, see pause(Object)
+		Object mTag;
+		// Applied to the decoded image, or null
+		List<Transformation> mTransformations;
+		Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
+		// Whether opaque images are decoded as RGB_565, part of the cache key
+		boolean mOpaqueAsRgb565;
+		private long mTimeBegin;
+		// Only accessed by the thread running the task
+		private int mLastPublishedProgress = -1;
+		private volatile int mProgress = -1;
+		// Guarded by mProgressLock
+		boolean mProgressPending;
+		// Only accessed on the main thread
+		private int mDeliveredProgress = -1;
+		private volatile boolean mCancelled;
+		private Bitmap mResult;
+		// A bitmap from the memory cache that a revalidation found unchanged
+		private Bitmap mReusedBitmap;
+		// The bitmap from the memory cache kept out of the pool while the
+		// task revalidates it, released in onPostExecute()
+		private Bitmap mRetainedBitmap;
+
+		private final Runnable mPostExecute = new Runnable() {
+			@Override
+			public void run() {
+				onPostExecute(mResult);
+			}
+		};
+
+		public ImageDownloadTask(String key, String cacheKey, int targetWidth, int targetHeight,
+				boolean diskOnly, int priority) {
+			super(priority);
+    		mKey = cacheKey;
+    		mRequest = new DownloadRequest(key, targetWidth, targetHeight, diskOnly, this);
+    		mTimeBegin = SystemClock.elapsedRealtime();
+		}
+
+		/**
+		 * @param requested the config of the request, or null for the
+		 * default of the downloader
+		 * @param opaqueAsRgb565 the flag the cache key of the task was made
+		 * with
+		 */
+		void setBitmapConfig(Bitmap.Config requested, boolean opaqueAsRgb565) {
+			mBitmapConfig = requested != null ? requested : mDefaultBitmapConfig;
+			mOpaqueAsRgb565 = opaqueAsRgb565;
+		}
+
+		void addTarget(ImageView imageView, ProgressListener progressListener) {
+			mTargets.add(new Recipient(imageView, null, progressListener));
+		}
+
+		void addTarget(Target target, ProgressListener progressListener) {
+			mTargets.add(new Recipient(null, target, progressListener));
+		}
+
+		void removeTarget(ImageView imageView) {
+			for (int i = mTargets.size() - 1; i >= 0; i--) {
+				WeakReference<ImageView> reference = mTargets.get(i).mImageViewReference;
+				if (reference == null) continue;
+
+				ImageView targetView = reference.get();
+				if (targetView == null || targetView == imageView) {
+					mTargets.remove(i);
+				}
+			}
+		}
+
+		void removeTarget(Target target) {
+			for (int i = mTargets.size() - 1; i >= 0; i--) {
+				if (mTargets.get(i).mTarget == target) mTargets.remove(i);
+			}
+		}
+
+		/**
+		 * @return true if a view that is still alive is waiting for this task
+		 */
+		boolean hasTargets() {
+			for (Recipient recipient : mTargets) {
+				// Targets are removed when they are cancelled
+				if (recipient.mTarget != null) return true;
+				if (getDownloadTask(recipient.mImageViewReference.get()) == this) return true;
 			}
+			return false;
+		}
+
+		/**
+		 * @return true if a task that has not been cancelled is waiting for
+		 * this one
+		 */
+		boolean hasDependents() {
+			for (ImageDownloadTask dependent : mDependents) {
+				if (!dependent.isCancelled()) return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled) return;
 			
-			mHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					if (mProgressListener == null) {
-						return;
+			try {
+				Bitmap bitmap = doInBackground();
+				// A bitmap reused from the memory cache is already transformed
+				if (bitmap != null && bitmap != mReusedBitmap && mTransformations != null && !isCancelled()) {
+					try {
+						bitmap = Transformations.apply(mTransformations, bitmap, mBitmapPool);
+					} catch (RuntimeException e) {
+						// Fail this load rather than the dispatcher's worker
+						Log.e(TAG, "transformation failed: " + mKey, e);
+						bitmap = null;
 					}
-					
-					long elapsedTime = mLastUpdateTime - mTimeBegin;
-					mProgressListener.onProgressUpdated(progress, elapsedTime);
 				}
-			});
+				mResult = bitmap;
+			} finally {
+				mHandler.post(mPostExecute);
+			}
 		}
-		
+
+		boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/**
+		 * Removes the task from the dispatcher queue, or tells the running
+		 * download to stop
+		 */
+		void cancel() {
+			if (!mCancelled) mStats.mCancellations.incrementAndGet();
+			mCancelled = true;
+			mRequest.cancel();
+			if (!mDispatcher.remove(this)) mPausedTasks.remove(this);
+		}
+
+		private Bitmap doInBackground() {
+			String key = mRequest.getKey();
+			DiskLruCache diskCache = getDiskCache();
+			CacheValidators validators = getStoredValidators(key);
+			// Local images are decoded from where they are stored
+			if (!shouldCacheOnDisk(key)) return mRequest.isDiskOnly() ? null : downloadImage();
+
+			boolean stale = validators != null && validators.isExpired(System.currentTimeMillis());
+
+			if (mRequest.isDiskOnly()) {
+				if (diskCache == null) return null;
+				if (diskCache.contains(key)) {
+					if (!stale) return null;
+					if (validators.canRevalidate()) mRequest.setCachedValidators(validators);
+				}
+
+				Bitmap bitmap = downloadImage();
+				storeResponseValidators(mRequest, validators, true);
+				return bitmap;
+			}
+
+			Bitmap cachedBitmap = null;
+			if (!stale) {
+				Bitmap bitmap = decodeFromDiskCache();
+				if (bitmap != null) return bitmap;
+			} else {
+				cachedBitmap = getBitmapFromCache(mKey);
+				// It may be evicted during the round-trip, but must not be
+				// decoded into while it can still be returned
+				if (cachedBitmap != null) {
+					mBitmapCache.retain(cachedBitmap);
+					if (getBitmapFromCache(mKey) == cachedBitmap) {
+						mRetainedBitmap = cachedBitmap;
+					} else {
+						// Evicted before it was retained, it may be pooled
+						mBitmapCache.release(cachedBitmap);
+						cachedBitmap = null;
+					}
+				}
+				// Only ask whether the image changed if it is still cached
+				if (validators.canRevalidate()
+						&& (cachedBitmap != null || (diskCache != null && diskCache.contains(key)))) {
+					mRequest.setCachedValidators(validators);
+				}
+			}
+			
+			Bitmap bitmap = downloadImage();
+			storeResponseValidators(mRequest, validators, bitmap != null);
+			if (isCancelled() || (bitmap != null && !mRequest.isNotModified())) return bitmap;
+
+			// Not modified, or the download failed and the stale image is
+			// better than nothing
+			if (cachedBitmap != null) {
+				mReusedBitmap = cachedBitmap;
+				return cachedBitmap;
+			}
+			return stale ? decodeFromDiskCache() : null;
+		}
+
+		private Bitmap decodeFromDiskCache() {
+			Bitmap bitmap = getBitmapFromEncodedCache(mRequest);
+			if (bitmap == null) bitmap = getBitmapFromDiskCache(mRequest);
+			if (bitmap != null) mStats.mBytesDecoded.addAndGet(getBitmapByteCount(bitmap));
+			return bitmap;
+		}
+
+		/**
+		 * Called for every read, only records the progress. It is delivered
+		 * with the progress of the other downloads in the next frame.
+		 */
 		@Override
-		protected void onPostExecute(Bitmap bitmap) {
-			if (isCancelled()) bitmap = null;
+		public void publishProgress(int progress) {
+			if (progress == mLastPublishedProgress) return;
+
+			mLastPublishedProgress = progress;
+			mProgress = progress;
+			scheduleProgress(this);
+		}
+
+		/**
+		 * Tells the listeners about the latest progress if they have not
+		 * heard about it yet
+		 */
+		void deliverProgress(long now) {
+			int progress = mProgress;
+			if (progress == mDeliveredProgress || isCancelled()) return;
+
+			mDeliveredProgress = progress;
+			long elapsedTime = now - mTimeBegin;
+			for (Recipient recipient : mTargets) {
+				if (recipient.mProgressListener != null) {
+					recipient.mProgressListener.onProgressUpdated(progress, elapsedTime);
+				}
+			}
+		}
+		
+		private void onPostExecute(Bitmap bitmap) {
+			if (mRequest.isDiskOnly()) {
+				onPrefetchDone(bitmap);
+				return;
+			}
+
+			if (mInFlightTasks.get(mKey) == this) {
+				mInFlightTasks.remove(mKey);
+			}
+			// The last update may still be waiting for the next frame
+			deliverProgress(SystemClock.elapsedRealtime());
 			
-			addBitmapToCache(mKey, bitmap);
+			if (isCancelled() && bitmap != null) {
+				// Nobody will see the bitmap, decode the next image into it,
+				// unless it is still cached
+				if (bitmap != mReusedBitmap) mBitmapPool.put(bitmap);
+				bitmap = null;
+			}
 			
+			// Targets may start or cancel loads from their callbacks
+			ArrayList<Recipient> recipients = new ArrayList<Recipient>(mTargets);
+			mTargets.clear();
+			ArrayList<Target> targets = new ArrayList<Target>(0);
+			for (Recipient recipient : recipients) {
+				if (recipient.mTarget != null && mTargetTasks.get(recipient.mTarget) == this) {
+					mTargetTasks.remove(recipient.mTarget);
+					targets.add(recipient.mTarget);
+				}
+			}
+
 			if (bitmap != null) {
-			    ImageView imageView = mImageViewReference.get();
-			    ImageDownloadTask bitmapDownloaderTask = getDownloadTask(imageView);
-			    // Change bitmap only if this process is still associated with it
-			    if (this == bitmapDownloaderTask) {
-			        imageView.setImageBitmap(bitmap);
-			    }
+				for (Recipient recipient : recipients) {
+				    if (recipient.mImageViewReference == null) continue;
+
+				    ImageView imageView = recipient.mImageViewReference.get();
+				    ImageDownloadTask bitmapDownloaderTask = getDownloadTask(imageView);
+				    // Change bitmap only if this process is still associated with it
+				    if (this == bitmapDownloaderTask) {
+				        setImageBitmap(imageView, bitmap);
+				    }
+				}
+				if (!targets.isEmpty()) mBitmapCache.setHandedOut(bitmap);
+				
+				// Cache after displaying so that the bitmap can't be pooled
+				// if it is too large to stay in the cache
+				addBitmapToCache(mKey, bitmap);
+			} else if (isCancelled()) {
+				Log.v(TAG, "download cancelled: " + mKey);
 			} else {
 				Log.w(TAG, "could not download bitmap: " + mKey);
 			}
+			if (mRetainedBitmap != null) {
+				mBitmapCache.release(mRetainedBitmap);
+				mRetainedBitmap = null;
+			}
+
+			for (Target target : targets) {
+				if (bitmap != null) {
+					target.onImageLoaded(bitmap);
+				} else {
+					target.onImageFailed();
+				}
+			}
+			scheduleStatsUpdate();
+		}
+
+		private void onPrefetchDone(Bitmap bitmap) {
+			if (mPrefetchTasks.get(mKey) == this) {
+				mPrefetchTasks.remove(mKey);
+			}
+
+			// Implementations may decode anyway, nobody is waiting for it
+			if (bitmap != null) mBitmapPool.put(bitmap);
+
+			for (ImageDownloadTask dependent : mDependents) {
+				if (!dependent.isCancelled()) dispatch(dependent);
+			}
+			mDependents.clear();
+			scheduleStatsUpdate();
 		}
 		
 	    private Bitmap downloadImage() {
-	    	return download(mKey, mImageViewReference);
+	    	// The bytes may change, they are cached again once downloaded
+	    	EncodedMemoryCache encodedCache = mBitmapCache.getEncodedCache();
+	    	if (encodedCache != null) encodedCache.remove(getEncodedCacheKey(mRequest.getKey()));
+
+	    	long start = System.nanoTime();
+	    	Bitmap bitmap = download(mRequest);
+	    	long elapsed = System.nanoTime() - start;
+
+	    	mStats.mBytesDownloaded.addAndGet(mRequest.getBytesDownloaded());
+	    	if (mRequest.getDecodeTime() >= 0) mStats.mDecodeLatency.record(mRequest.getDecodeTime());
+	    	if (bitmap != null) mStats.mBytesDecoded.addAndGet(getBitmapByteCount(bitmap));
+	    	if (mRequest.isCancelled()) return bitmap;
+
+	    	mStats.mDownloadLatency.record(elapsed);
+	    	if (mRequest.isNotModified()) {
+	    		mStats.mNotModified.incrementAndGet();
+	    	} else if (!mRequest.isDiskOnly()) {
+	    		if (bitmap != null) {
+	    			mStats.mNetworkHits.incrementAndGet();
+	    		} else {
+	    			mStats.mNetworkMisses.incrementAndGet();
+	    		}
+	    	}
+	    	return bitmap;
 	    }
-	    
-		public void setProgressListener(ProgressListener progressListener) {
-			mProgressListener = progressListener;
-		}
     }
     
-    abstract protected Bitmap download(String key, WeakReference<ImageView> imageViewRef);
-    
-    protected boolean isCancelled(WeakReference<ImageView> imageViewRef) {
-    	ImageView imageView = imageViewRef.get();
-    	
-    	if (imageView == null) return true;
-    	
-    	ImageDownloadTask task = getDownloadTask(imageView);
-    	
-    	if (task == null) return true;
-    	
-    	return task.isCancelled();
-    }
-    
-    protected void publishProgress(int progress, WeakReference<ImageView> imageViewRef) {
-    	ImageView imageView = imageViewRef.get();
-    	
-    	if (imageView == null) return;
-    	
-    	ImageDownloadTask task = getDownloadTask(imageView);
-    	
-    	if (task == null) return;
-    	
-    	task.publishProgress(progress);
-    }
+    /**
+     * Downloads and decodes the image for {@link DownloadRequest#getKey()}.
+     * This is called on a background thread.
+     * @return the decoded image, or null if it could not be downloaded or the
+     * request was cancelled
+     */
+    abstract protected Bitmap download(DownloadRequest request);
     
     private static final class DownloadedDrawable extends ColorDrawable {
         private final WeakReference<ImageDownloadTask> downloadTaskReference;
@@ -295,6 +1350,14 @@ abstract public class AbstractImageDownloader {
     	 */
     	void onProgressUpdated(int progressPercentage, long timeElapsedMilli);
     }
+
+    public static interface StatsListener {
+    	/**
+    	 * Called on the main thread at most once a second, after images have
+    	 * been requested or loaded.
+    	 */
+    	void onStatsUpdated(StatsSnapshot stats);
+    }
     
 
     /*
@@ -304,41 +1367,134 @@ abstract public class AbstractImageDownloader {
      * Garbage Collector.
      */
     
-    // Hard cache, with a fixed maximum capacity and a life duration
-    private HashMap<String, Bitmap> sHardBitmapCache =
-        new LinkedHashMap<String, Bitmap>(HARD_CACHE_CAPACITY / 2, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(LinkedHashMap.Entry<String, Bitmap> eldest) {
-            if (size() > HARD_CACHE_CAPACITY) {
-                // Entries push-out of hard reference cache are transferred to soft reference cache
-                sSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-                return true;
-            } else
-                return false;
+    // Possibly shared with other downloaders, keys are prefixed with the
+    // namespace
+    private BitmapCache mBitmapCache;
+    private String mNamespace;
+
+    // Hard cache, with a maximum size in bytes, and soft cache for bitmaps
+    // kicked out of it, from mBitmapCache
+    private MemoryCache<String, Bitmap> mMemoryCache;
+
+    // Mutable bitmaps that are not used anymore, to decode into, from
+    // mBitmapCache
+    private BitmapPool mBitmapPool;
+
+    // Downloads in progress by key, only accessed on the main thread
+    private final HashMap<String, ImageDownloadTask> mInFlightTasks =
+        new HashMap<String, ImageDownloadTask>();
+
+    // The download each target waits for, only accessed on the main thread
+    private final HashMap<Target, ImageDownloadTask> mTargetTasks =
+        new HashMap<Target, ImageDownloadTask>();
+
+    // Disk-only prefetches in progress by key, only accessed on the main thread
+    private final HashMap<String, ImageDownloadTask> mPrefetchTasks =
+        new HashMap<String, ImageDownloadTask>();
+
+    // Tasks held back while paused, only accessed on the main thread
+    private final ArrayList<ImageDownloadTask> mPausedTasks = new ArrayList<ImageDownloadTask>();
+    private final HashSet<Object> mPausedTags = new HashSet<Object>();
+    private boolean mPausedAll;
+
+    // Tasks whose progress changed since the last frame. The lists are
+    // swapped at every frame so that delivering allocates nothing.
+    private final Object mProgressLock = new Object();
+    private ArrayList<ImageDownloadTask> mPendingProgressTasks = new ArrayList<ImageDownloadTask>();
+    private ArrayList<ImageDownloadTask> mDeliveringProgressTasks = new ArrayList<ImageDownloadTask>();
+    private boolean mProgressFramePosted;
+
+    private final Runnable mProgressFrame = new Runnable() {
+        public void run() {
+            deliverProgress();
+        }
+    };
+
+    private final ImageStats mStats = new ImageStats();
+
+    // Validators and expiry by source key, shared through the BitmapCache
+    // and also stored in the disk cache
+    private SizedLruCache<String, CacheValidators> mValidators;
+    private volatile long mDefaultMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    // Decode config of the requests that don't give one, only accessed on
+    // the main thread
+    private Bitmap.Config mDefaultBitmapConfig = Bitmap.Config.ARGB_8888;
+    private boolean mAutoRgb565;
+    private boolean mLowMemoryClass;
+
+    // Only accessed on the main thread
+    private StatsListener mStatsListener;
+    private boolean mStatsUpdateScheduled;
+
+    private final Runnable mStatsUpdater = new Runnable() {
+        public void run() {
+            mStatsUpdateScheduled = false;
+            if (mStatsListener != null) mStatsListener.onStatsUpdated(getStats());
         }
     };
 
-    // Soft cache for bitmaps kicked out of hard cache
-    private ConcurrentHashMap<String, SoftReference<Bitmap>> sSoftBitmapCache =
-        new ConcurrentHashMap<String, SoftReference<Bitmap>>(HARD_CACHE_CAPACITY / 2);
+    // Disk cache, opened lazily on a background thread and shared with the
+    // other downloaders using the same directory
+    private volatile File mDiskCacheDir;
+    private long mDiskCacheMaxBytes;
 
     private final Handler purgeHandler = new Handler();
+    private long mIdlePurgeDelayMillis = -1;
 
     private final Runnable purger = new Runnable() {
         public void run() {
-            clearCache();
+            trimMemory(0, true);
         }
     };
 
+    /**
+     * Queues the progress of the task for the next frame. Called on the
+     * thread running the task.
+     */
+    private void scheduleProgress(ImageDownloadTask task) {
+        synchronized (mProgressLock) {
+            if (task.mProgressPending) return;
+
+            task.mProgressPending = true;
+            mPendingProgressTasks.add(task);
+            if (mProgressFramePosted) return;
+            mProgressFramePosted = true;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        mHandler.postAtTime(mProgressFrame, now - now % PROGRESS_FRAME_MILLIS + PROGRESS_FRAME_MILLIS);
+    }
+
+    /**
+     * Delivers the progress of every task queued since the last frame
+     */
+    private void deliverProgress() {
+        ArrayList<ImageDownloadTask> tasks;
+        synchronized (mProgressLock) {
+            tasks = mPendingProgressTasks;
+            mPendingProgressTasks = mDeliveringProgressTasks;
+            mDeliveringProgressTasks = tasks;
+            mProgressFramePosted = false;
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).mProgressPending = false;
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).deliverProgress(now);
+        }
+        tasks.clear();
+    }
+
     /**
      * Adds this bitmap to the cache.
      * @param bitmap The newly downloaded bitmap.
      */
     private void addBitmapToCache(String key, Bitmap bitmap) {
         if (bitmap != null) {
-            synchronized (sHardBitmapCache) {
-                sHardBitmapCache.put(key, bitmap);
-            }
+            mMemoryCache.put(BitmapCache.getNamespacedKey(mNamespace, key), bitmap);
         }
     }
 
@@ -347,51 +1503,514 @@ abstract public class AbstractImageDownloader {
      * @return The cached bitmap or null if it was not found.
      */
     private Bitmap getBitmapFromCache(String key) {
-        // First try the hard reference cache
-        synchronized (sHardBitmapCache) {
-            final Bitmap bitmap = sHardBitmapCache.get(key);
-            if (bitmap != null) {
-                // Bitmap found in hard cache
-                // Move element to first position, so that it is removed last
-                sHardBitmapCache.remove(key);
-                sHardBitmapCache.put(key, bitmap);
-                return bitmap;
+        if (key == null) return null;
+
+        return mMemoryCache.get(BitmapCache.getNamespacedKey(mNamespace, key));
+    }
+ 
+    /**
+     * @return the cached bitmap, or null if it is not cached or has expired
+     * and must be revalidated
+     */
+    private Bitmap getFreshBitmapFromCache(String key, String cacheKey) {
+        Bitmap bitmap = getBitmapFromCache(cacheKey);
+        if (bitmap == null) return null;
+
+        CacheValidators validators = mValidators.get(key);
+        if (validators != null && validators.isExpired(System.currentTimeMillis())) return null;
+        return bitmap;
+    }
+
+    /**
+     * @param maxAgeMillis how long images whose response did not say can be
+     * used before they are revalidated, {@link #DEFAULT_MAX_AGE_MILLIS} by
+     * default. Only applies to images downloaded after this call.
+     */
+    public void setDefaultMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis < 0) throw new IllegalArgumentException("maxAgeMillis < 0");
+        mDefaultMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param config the config images are decoded with when their
+     * {@link DownloadOptions#bitmapConfig} is not set, ARGB_8888 by default.
+     * Only applies to images requested after this call. Must be called on
+     * the main thread.
+     */
+    public void setDefaultBitmapConfig(Bitmap.Config config) {
+        if (config == null) throw new NullPointerException("config == null");
+        mDefaultBitmapConfig = config;
+    }
+
+    /**
+     * @param enabled decode opaque images, such as JPEGs, as RGB_565, which
+     * uses half the memory, when the request does not give a config and
+     * memory is tight when the image is requested: the memory class of the
+     * application is small or most of the heap is in use. Images that may be
+     * translucent keep the default config. Off by default. Must be called on
+     * the main thread.
+     */
+    public void setAutoRgb565(boolean enabled) {
+        mAutoRgb565 = enabled;
+    }
+
+    /**
+     * @return true if the memory class of the application is small, or if
+     * most of the heap is in use
+     */
+    private boolean isMemoryTight() {
+        if (mLowMemoryClass) return true;
+
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used * 100 >= runtime.maxMemory() * TIGHT_HEAP_PERCENT;
+    }
+
+    /**
+     * Looks the validators up in memory, then on disk. Must not be called on
+     * the main thread.
+     * @return the validators of the cached image, or null if they are not
+     * known
+     */
+    private CacheValidators getStoredValidators(String key) {
+        CacheValidators validators = mValidators.get(key);
+        if (validators != null) return validators;
+
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) return null;
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = diskCache.get(VALIDATORS_KEY_PREFIX + key);
+            if (snapshot == null) return null;
+
+            byte[] data = new byte[(int) snapshot.getLength(0)];
+            readFully(snapshot.getInputStream(0), data);
+            validators = CacheValidators.decode(new String(data, "UTF-8"));
+            if (validators != null) mValidators.put(key, validators);
+            return validators;
+        } catch (IOException e) {
+            Log.e(TAG, "error reading validators from disk cache: " + key, e);
+            return null;
+        } finally {
+            if (snapshot != null) snapshot.close();
+        }
+    }
+
+    /**
+     * Remembers the validators in memory and on disk, with the default max
+     * age if the response did not give one. Must not be called on the main
+     * thread.
+     */
+    private void storeValidators(String key, CacheValidators validators) {
+        if (validators.getExpiresAt() == CacheValidators.UNKNOWN_EXPIRY) {
+            long now = System.currentTimeMillis();
+            long maxAge = Math.min(mDefaultMaxAgeMillis, Long.MAX_VALUE - now);
+            validators = validators.withExpiresAt(now + maxAge);
+        }
+        mValidators.put(key, validators);
+
+        try {
+            byte[] data = validators.encode().getBytes("UTF-8");
+            writeToDiskCache(VALIDATORS_KEY_PREFIX + key, data, 0, data.length);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Remembers the validators of the response so that the image is
+     * revalidated once it expires
+     */
+    private void storeResponseValidators(DownloadRequest request, CacheValidators cached, boolean stored) {
+        CacheValidators validators = request.getResponseValidators();
+        if (validators == null || request.isCancelled()) return;
+
+        if (request.isNotModified()) {
+            storeValidators(request.getKey(), validators.mergeWith(cached));
+        } else if (stored) {
+            storeValidators(request.getKey(), validators);
+        }
+    }
+
+    /**
+     * Releases memory according to a level of
+     * android.content.ComponentCallbacks2. Call it from the onTrimMemory()
+     * of the application or activity. While the app is running, the soft
+     * reference cache and the bitmap pool are dropped first, then the
+     * in-memory LRU cache is shrunk more the more critical the level is.
+     * Must be called on the main thread.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            trimMemory(0, true);
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            trimMemory(25, true);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            trimMemory(50, true);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // The images may be shown again soon, keep the recent ones
+            trimMemory(75, true);
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimMemory(25, true);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimMemory(50, true);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimMemory(100, true);
+        }
+    }
+
+    /**
+     * Releases every image that is not shown. Call it from the onLowMemory()
+     * of the application or activity. Must be called on the main thread.
+     */
+    public void onLowMemory() {
+        trimMemory(0, true);
+    }
+
+    /**
+     * Shrinks the in-memory LRU cache and flushes the bitmap pool. Bitmaps
+     * still shown by a view end up in the soft reference cache, so that
+     * they are found again without being downloaded.
+     * @param hardCachePercent the percentage of its maximum size the LRU
+     * cache is trimmed to
+     * @param trimSoftCache also drop the soft reference cache, except the
+     * bitmaps still shown
+     */
+    protected void trimMemory(int hardCachePercent, boolean trimSoftCache) {
+        if (hardCachePercent < 100) {
+            mMemoryCache.trimToSize((int) ((long) mMemoryCache.maxSize() * hardCachePercent / 100));
+        }
+        // The bitmaps evicted above may have been pooled
+        mBitmapPool.clear();
+        if (trimSoftCache) mMemoryCache.trimSoftCache();
+
+        EncodedMemoryCache encodedCache = mBitmapCache.getEncodedCache();
+        if (encodedCache != null && hardCachePercent < 100) {
+            encodedCache.trimToSize((int) ((long) encodedCache.maxSize() * hardCachePercent / 100));
+        }
+    }
+
+    /**
+     * @param delayMillis the time without any request after which the
+     * in-memory caches are purged of every image that is not shown, or -1
+     * to never purge them, which is the default. A shared cache is purged
+     * for every attached downloader. Must be called on the main thread.
+     */
+    public void setIdlePurgeDelay(long delayMillis) {
+        mIdlePurgeDelayMillis = delayMillis;
+        purgeHandler.removeCallbacks(purger);
+        resetPurgeTimer();
+    }
+
+    /**
+     * Clears the image cache used internally to improve performance, even
+     * the images that are shown, and of every downloader it is shared with.
+     */
+    protected void clearCache() {
+        mMemoryCache.clear();
+        mBitmapPool.clear();
+        EncodedMemoryCache encodedCache = mBitmapCache.getEncodedCache();
+        if (encodedCache != null) encodedCache.clear();
+    }
+
+    /**
+     * @return the pool of bitmaps evicted from the in-memory cache that new
+     * images are decoded into, which reports its size and hit rate
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * @return the in-memory cache of the downloader, which may be shared
+     */
+    public BitmapCache getBitmapCache() {
+        return mBitmapCache;
+    }
+
+    /**
+     * Opens the disk cache the first time it is needed, see
+     * {@link BitmapCache#openDiskCache(File, int, long)}. Must not be called on
+     * the main thread.
+     * @return the disk cache, or null if it is disabled or could not be opened
+     */
+    private DiskLruCache getDiskCache() {
+        File diskCacheDir = mDiskCacheDir;
+        if (diskCacheDir == null) return null;
+
+        try {
+            return BitmapCache.openDiskCache(diskCacheDir, DISK_CACHE_VERSION, mDiskCacheMaxBytes);
+        } catch (IOException e) {
+            Log.e(TAG, "could not open disk cache, disabling it", e);
+            mDiskCacheDir = null;
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the bytes stored in the disk cache at the target size of the
+     * request. Must not be called on the main thread.
+     * @return the decoded bitmap, or null if the key is not on disk
+     */
+    private Bitmap getBitmapFromDiskCache(DownloadRequest request) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) return null;
+
+        String key = request.getKey();
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = diskCache.get(key);
+            if (snapshot == null) {
+                mStats.mDiskMisses.incrementAndGet();
+                return null;
             }
+            mStats.mDiskHits.incrementAndGet();
+
+            // The encoded bytes are read once so that the bounds and the
+            // pixels can be decoded from the same snapshot
+            byte[] data = new byte[(int) snapshot.getLength(0)];
+            readFully(snapshot.getInputStream(0), data);
+            addToEncodedCache(key, data, 0, data.length);
+
+            long decodeStart = System.nanoTime();
+            Bitmap bitmap = decodeBitmap(request, data, 0, data.length);
+            mStats.mDecodeLatency.record(System.nanoTime() - decodeStart);
+            return bitmap;
+        } catch (IOException e) {
+            Log.e(TAG, "error reading from disk cache: " + key, e);
+            return null;
+        } finally {
+            if (snapshot != null) snapshot.close();
+        }
+    }
+
+    /**
+     * Decodes the encoded bytes kept in memory at the target size of the
+     * request, without any I/O. Must not be called on the main thread.
+     * @return the decoded bitmap, or null if the tier is disabled or does not
+     * have the key
+     */
+    private Bitmap getBitmapFromEncodedCache(DownloadRequest request) {
+        EncodedMemoryCache encodedCache = mBitmapCache.getEncodedCache();
+        if (encodedCache == null) return null;
+
+        ByteBuffer data = encodedCache.get(getEncodedCacheKey(request.getKey()));
+        if (data == null) {
+            mStats.mEncodedMisses.incrementAndGet();
+            return null;
+        }
+        mStats.mEncodedHits.incrementAndGet();
+
+        ImageDownloadTask task = getTask(request);
+        long decodeStart = System.nanoTime();
+        Bitmap bitmap = BitmapDecoder.decodeByteBuffer(data, request.getTargetWidth(), request.getTargetHeight(),
+                task.mBitmapConfig, task.mOpaqueAsRgb565, mBitmapPool);
+        mStats.mDecodeLatency.record(System.nanoTime() - decodeStart);
+        return bitmap;
+    }
+
+    /**
+     * Decodes the encoded image at the target size of the request, with the
+     * config it asks for, into a pooled bitmap when possible. Must not be
+     * called on the main thread.
+     * @return the decoded image, or null if it could not be decoded
+     */
+    protected Bitmap decodeBitmap(DownloadRequest request, byte[] data, int offset, int length) {
+        ImageDownloadTask task = getTask(request);
+        return BitmapDecoder.decodeByteArray(data, offset, length, request.getTargetWidth(),
+                request.getTargetHeight(), task.mBitmapConfig, task.mOpaqueAsRgb565, mBitmapPool);
+    }
+
+    /**
+     * Decodes the stream at its original size, with the config the request
+     * asks for. Must not be called on the main thread.
+     * @return the decoded image, or null if it could not be decoded
+     */
+    protected Bitmap decodeBitmap(DownloadRequest request, InputStream in) {
+        ImageDownloadTask task = getTask(request);
+        return BitmapDecoder.decodeStream(in, task.mBitmapConfig, task.mOpaqueAsRgb565, mBitmapPool);
+    }
+
+    /**
+     * Decodes an image opened by an {@link ImageLoader} at the target size of
+     * the request, from its file descriptor or buffer without copying it.
+     * Streams are decoded as they are read at the original size, and read
+     * into memory first otherwise. Must not be called on the main thread.
+     * @return the decoded image, or null if it could not be decoded
+     */
+    protected Bitmap decodeBitmap(DownloadRequest request, ImageSource source) throws IOException {
+        ImageDownloadTask task = getTask(request);
+        int targetWidth = request.getTargetWidth();
+        int targetHeight = request.getTargetHeight();
+        if (source.getFileDescriptor() != null) {
+            return BitmapDecoder.decodeFileDescriptor(source.getFileDescriptor(), targetWidth, targetHeight,
+                    task.mBitmapConfig, task.mOpaqueAsRgb565, mBitmapPool);
+        } else if (source.getBuffer() != null) {
+            return BitmapDecoder.decodeByteBuffer(source.getBuffer(), targetWidth, targetHeight,
+                    task.mBitmapConfig, task.mOpaqueAsRgb565, mBitmapPool);
+        } else if (targetWidth <= 0 && targetHeight <= 0) {
+            return decodeBitmap(request, new FlushedInputStream(source.getInputStream()));
+        }
+
+        // The bounds and the pixels can't both be read from a stream
+        InputStream in = source.getInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        byte[] data = bytes.toByteArray();
+        return decodeBitmap(request, data, 0, data.length);
+    }
+
+    /**
+     * Images for which this returns false are loaded by
+     * {@link #download(DownloadRequest)} every time they are not in memory,
+     * skipping the disk cache, and are never prefetched.
+     * @return true by default
+     */
+    protected boolean shouldCacheOnDisk(String key) {
+        return true;
+    }
+
+    private static ImageDownloadTask getTask(DownloadRequest request) {
+        // Every request handed to download(DownloadRequest) is made by a task,
+        // except the disk-only ones of prefetchAll(), which are not decoded
+        return (ImageDownloadTask) request.getProgressPublisher();
+    }
+
+    private void addToEncodedCache(String key, byte[] data, int offset, int length) {
+        EncodedMemoryCache encodedCache = mBitmapCache.getEncodedCache();
+        if (encodedCache != null) encodedCache.put(getEncodedCacheKey(key), data, offset, length);
+    }
+
+    /**
+     * @return the key of the encoded image in the tier of the
+     * {@link BitmapCache}, which is the source key in the namespace
+     */
+    private String getEncodedCacheKey(String key) {
+        return BitmapCache.getNamespacedKey(mNamespace, key);
+    }
+
+    private static void readFully(InputStream in, byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int read = in.read(data, offset, data.length - offset);
+            if (read == -1) throw new IOException("unexpected end of disk cache entry");
+            offset += read;
         }
+    }
+
+    /**
+     * Stores the encoded image in the disk cache so that it can be decoded
+     * from there instead of downloaded again, and in the tier of encoded
+     * images of the {@link BitmapCache} if it is enabled. Must not be called
+     * on the main thread.
+     */
+    protected void addToDiskCache(String key, byte[] data, int offset, int length) {
+        addToEncodedCache(key, data, offset, length);
+        writeToDiskCache(key, data, offset, length);
+    }
 
-        // Then try the soft reference cache
-        SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(key);
-        if (bitmapReference != null) {
-            final Bitmap bitmap = bitmapReference.get();
-            if (bitmap != null) {
-                // Bitmap found in soft cache
-                return bitmap;
-            } else {
-                // Soft reference has been Garbage Collected
-                sSoftBitmapCache.remove(key);
+    private void writeToDiskCache(String key, byte[] data, int offset, int length) {
+        DiskLruCache.Editor editor = editDiskCache(key);
+        // Disabled, or another thread is already writing this key
+        if (editor == null) return;
+
+        try {
+
+            OutputStream out = editor.newOutputStream(0);
+            try {
+                out.write(data, offset, length);
+            } finally {
+                out.close();
             }
+            editor.commit();
+        } catch (IOException e) {
+            Log.e(TAG, "error writing to disk cache: " + key, e);
+            try { editor.abort(); } catch (IOException ignored) { }
         }
+    }
+
+    /**
+     * Starts writing an entry of the disk cache, so that implementations can
+     * stream the encoded image to it while decoding. The value is written
+     * with {@link DiskLruCache.Editor#newOutputStream(int)} at index 0. Must
+     * not be called on the main thread.
+     * @return an editor that must be committed or aborted, or null if the
+     * disk cache is disabled or another thread is writing the key
+     */
+    protected DiskLruCache.Editor editDiskCache(String key) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) return null;
 
-        return null;
+        try {
+            return diskCache.edit(key);
+        } catch (IOException e) {
+            Log.e(TAG, "error editing disk cache: " + key, e);
+            return null;
+        }
     }
- 
+
     /**
-     * Clears the image cache used internally to improve performance. Note that for memory
-     * efficiency reasons, the cache will automatically be cleared after a certain inactivity delay.
+     * @return the dispatcher running the downloads, which can be used to
+     * change the number of threads and to observe the queue
      */
-    protected void clearCache() {
-        sHardBitmapCache.clear();
-        sSoftBitmapCache.clear();
+    public ImageDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * @return the number of bytes used by the bitmaps in the in-memory LRU
+     * cache, including the images of the downloaders it is shared with
+     */
+    public int getHardCacheSize() {
+        return mMemoryCache.size();
+    }
+
+    /**
+     * @return the maximum number of bytes the bitmaps in the in-memory LRU
+     * cache can use
+     */
+    public int getHardCacheMaxSize() {
+        return mMemoryCache.maxSize();
+    }
+
+    /**
+     * @return the hits and misses of each cache, latencies and byte counts
+     * since the downloader was created. The in-memory counts are those of
+     * the {@link BitmapCache}, for every downloader it is shared with.
+     */
+    public StatsSnapshot getStats() {
+        return mStats.snapshot(mMemoryCache);
+    }
+
+    /**
+     * @param listener receives a {@link StatsSnapshot} on the main thread
+     * while images are being requested, or null to stop. Must be called on
+     * the main thread.
+     */
+    public void setStatsListener(StatsListener listener) {
+        mStatsListener = listener;
+    }
+
+    private void scheduleStatsUpdate() {
+        if (mStatsListener == null || mStatsUpdateScheduled) return;
+
+        mStatsUpdateScheduled = true;
+        mHandler.postDelayed(mStatsUpdater, STATS_UPDATE_INTERVAL_MILLIS);
     }
 
     /**
      * Allow a new delay before the automatic cache clear is done.
      */
     private void resetPurgeTimer() {
-    	if (DELAY_BEFORE_PURGE < 0) return;
+    	if (mIdlePurgeDelayMillis < 0) return;
     	
         purgeHandler.removeCallbacks(purger);
-        purgeHandler.postDelayed(purger, DELAY_BEFORE_PURGE);
+        purgeHandler.postDelayed(purger, mIdlePurgeDelayMillis);
     }
 
 }
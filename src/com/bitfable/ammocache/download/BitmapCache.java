@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+import com.bitfable.ammocache.cache.DiskLruCache;
+import com.bitfable.ammocache.cache.EncodedMemoryCache;
+import com.bitfable.ammocache.cache.MemoryCache;
+import com.bitfable.ammocache.cache.SizedLruCache;
+
+/**
+ * The decoded images of one or more downloaders: an in-memory LRU cache
+ * bounded by the bytes of its bitmaps, backed by a bounded LRU cache of soft
+ * references of half its size for the evicted bitmaps that are still shown
+ * or can't be pooled, and the {@link BitmapPool} the other evicted bitmaps
+ * are reused from.
+ *
+ * Downloaders created with {@link UrlImageDownloader#UrlImageDownloader(Context)}
+ * all share the process-wide cache returned by {@link #getShared(Context)},
+ * so that an image loaded on one screen is still in memory on the next one,
+ * and is kept only once under a single byte budget. Downloaders given a
+ * namespace only see their own images, but still count against the budget of
+ * the cache they are attached to.
+ *
+ * Bitmaps shown by a view of any attached downloader, or handed to a
+ * {@link Target}, are never pooled.
+ *
+ * An optional third tier keeps the encoded bytes of images, with its own
+ * budget set by {@link #setEncodedCacheMaxBytes(int)}. An image that fell out
+ * of the decoded tiers but is still there is decoded again without any I/O.
+ * The tier lives on the Java heap like the bitmaps, so its budget competes
+ * with theirs, see {@link #getDefaultEncodedCacheMaxBytes(Context)}.
+ *
+ * The disk caches of the downloaders are kept here too, one per directory
+ * for the whole process, since a directory can only be used by one
+ * {@link DiskLruCache} at a time. So are the validators and expiry of the
+ * cached images, so that an image put in memory by one downloader is
+ * revalidated by the others when it expires.
+ */
+public final class BitmapCache {
+	/**
+	 * Fraction of the in-memory LRU cache size used by the pool of reusable
+	 * bitmaps
+	 */
+	private static final int BITMAP_POOL_DIVISOR = 4;
+
+	/**
+	 * Fraction of the in-memory LRU cache size used by the soft reference
+	 * cache
+	 */
+	private static final int SOFT_CACHE_DIVISOR = 2;
+
+	/**
+	 * Maximum number of images whose validators are kept in memory
+	 */
+	private static final int VALIDATORS_CACHE_SIZE = 1024;
+
+	/**
+	 * Fraction of the application's memory class suggested for the tier of
+	 * encoded images
+	 */
+	public static final int DEFAULT_ENCODED_CACHE_MEMORY_CLASS_DIVISOR = 32;
+
+	private static BitmapCache sShared;
+	private static int sSharedMaxBytes;
+
+	// Guarded by itself
+	private static final Map<File, DiskLruCache> sDiskCaches = new HashMap<File, DiskLruCache>();
+
+	private final MemoryCache<String, Bitmap> mMemoryCache;
+	private final BitmapPool mBitmapPool;
+	private volatile EncodedMemoryCache mEncodedCache;
+
+	// Validators and expiry by source key, for every attached downloader
+	private final SizedLruCache<String, CacheValidators> mValidators =
+		new SizedLruCache<String, CacheValidators>(VALIDATORS_CACHE_SIZE) {
+			@Override
+			protected int sizeOf(String key, CacheValidators validators) {
+				return 1;
+			}
+		};
+
+	// The bitmap last set on each view, so that displayed bitmaps are never
+	// put into the bitmap pool
+	private final Map<ImageView, Bitmap> mDisplayedBitmaps =
+		Collections.synchronizedMap(new WeakHashMap<ImageView, Bitmap>());
+
+	// Bitmaps given to a Target or returned by get(), which are never pooled
+	// since there is no telling when they stop being used
+	private final Map<Bitmap, Boolean> mHandedOutBitmaps =
+		Collections.synchronizedMap(new WeakHashMap<Bitmap, Boolean>());
+
+	// Bitmaps a revalidation may still return, counted since several tasks
+	// may hold the same one. Guarded by itself.
+	private final Map<Bitmap, Integer> mRetainedBitmaps = new HashMap<Bitmap, Integer>();
+
+	/**
+	 * Creates a cache that is not shared with other downloaders unless they
+	 * are given it explicitly.
+	 * @param maxBytes the maximum number of bytes the bitmaps in the
+	 * in-memory LRU cache can use
+	 */
+	public BitmapCache(int maxBytes) {
+		this(maxBytes, false);
+	}
+
+	/**
+	 * @param admission true to keep images out of the in-memory LRU cache
+	 * unless they have been requested more often than those they would push
+	 * out, so that a fling through a long list does not evict the images
+	 * shown on every screen. See {@link SizedLruCache#SizedLruCache(int, boolean)}.
+	 * @see #BitmapCache(int)
+	 */
+	public BitmapCache(int maxBytes, boolean admission) {
+		mMemoryCache = new MemoryCache<String, Bitmap>(maxBytes, maxBytes / SOFT_CACHE_DIVISOR, admission) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return AbstractImageDownloader.getBitmapByteCount(bitmap);
+			}
+
+			@Override
+			protected boolean entryEvicted(String key, Bitmap bitmap) {
+				// Bitmaps nobody displays can be decoded into again
+				return !BitmapCache.this.isInUse(bitmap) && mBitmapPool.put(bitmap);
+			}
+
+			@Override
+			protected boolean isInUse(String key, Bitmap bitmap) {
+				return BitmapCache.this.isInUse(bitmap);
+			}
+		};
+		mBitmapPool = new BitmapPool(maxBytes / BITMAP_POOL_DIVISOR);
+	}
+
+	/**
+	 * @return the cache shared by every downloader of the process that is not
+	 * given its own, created the first time with the budget set by
+	 * {@link #setSharedMaxBytes(int)} or
+	 * {@link AbstractImageDownloader#getDefaultHardCacheMaxBytes(Context)}
+	 */
+	public static synchronized BitmapCache getShared(Context context) {
+		if (sShared == null) {
+			int maxBytes = sSharedMaxBytes > 0
+					? sSharedMaxBytes : AbstractImageDownloader.getDefaultHardCacheMaxBytes(context);
+			sShared = new BitmapCache(maxBytes);
+		}
+		return sShared;
+	}
+
+	/**
+	 * Sets the byte budget of the shared cache, for instance in
+	 * Application.onCreate().
+	 * @throws IllegalStateException if the shared cache was already created
+	 * with another budget
+	 */
+	public static synchronized void setSharedMaxBytes(int maxBytes) {
+		if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+		if (sShared != null && sShared.getMaxSize() != maxBytes) {
+			throw new IllegalStateException("shared cache already created with " + sShared.getMaxSize() + " bytes");
+		}
+		sSharedMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Opens the disk cache of a directory, or returns the one already opened
+	 * by another downloader, whatever its budget. Must not be called on the
+	 * main thread.
+	 * @param maxBytes the budget of the disk cache if it is not open yet
+	 * @throws IOException if the disk cache could not be opened
+	 */
+	static DiskLruCache openDiskCache(File directory, int appVersion, long maxBytes) throws IOException {
+		directory = directory.getAbsoluteFile();
+		synchronized (sDiskCaches) {
+			DiskLruCache diskCache = sDiskCaches.get(directory);
+			if (diskCache == null || diskCache.isClosed()) {
+				diskCache = DiskLruCache.open(directory, appVersion, 1, maxBytes);
+				sDiskCaches.put(directory, diskCache);
+			}
+			return diskCache;
+		}
+	}
+
+	/**
+	 * @return the key of an image in the cache, which is prefixed with the
+	 * namespace so that namespaces never see each other's images
+	 */
+	static String getNamespacedKey(String namespace, String key) {
+		if (namespace == null) return key;
+		return '[' + namespace + ']' + key;
+	}
+
+	/**
+	 * @return the number of bytes used by the bitmaps in the in-memory LRU
+	 * cache, for every attached downloader
+	 */
+	public int getSize() {
+		return mMemoryCache.size();
+	}
+
+	/**
+	 * @return the maximum number of bytes the bitmaps in the in-memory LRU
+	 * cache can use
+	 */
+	public int getMaxSize() {
+		return mMemoryCache.maxSize();
+	}
+
+	/**
+	 * @return 1/{@link #DEFAULT_ENCODED_CACHE_MEMORY_CLASS_DIVISOR} of the
+	 * application's memory class, in bytes, a budget for the tier of encoded
+	 * images that leaves most of the heap to the decoded images
+	 */
+	public static int getDefaultEncodedCacheMaxBytes(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+		return memoryClassBytes / DEFAULT_ENCODED_CACHE_MEMORY_CLASS_DIVISOR;
+	}
+
+	/**
+	 * Enables the tier of encoded images. It is disabled by default.
+	 * @param maxBytes the maximum number of encoded bytes kept on the Java
+	 * heap, such as {@link #getDefaultEncodedCacheMaxBytes(Context)}, or 0 to
+	 * disable the tier and drop its images
+	 */
+	public void setEncodedCacheMaxBytes(int maxBytes) {
+		if (maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0");
+
+		EncodedMemoryCache encodedCache = mEncodedCache;
+		if (encodedCache != null && encodedCache.maxSize() == maxBytes) return;
+		mEncodedCache = maxBytes == 0 ? null : new EncodedMemoryCache(maxBytes);
+	}
+
+	/**
+	 * @return the tier of encoded images, or null if it is disabled
+	 */
+	public EncodedMemoryCache getEncodedCache() {
+		return mEncodedCache;
+	}
+
+	MemoryCache<String, Bitmap> getMemoryCache() {
+		return mMemoryCache;
+	}
+
+	BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	SizedLruCache<String, CacheValidators> getValidators() {
+		return mValidators;
+	}
+
+	void setDisplayed(ImageView imageView, Bitmap bitmap) {
+		if (bitmap == null) {
+			mDisplayedBitmaps.remove(imageView);
+		} else {
+			mDisplayedBitmaps.put(imageView, bitmap);
+		}
+	}
+
+	void setHandedOut(Bitmap bitmap) {
+		mHandedOutBitmaps.put(bitmap, Boolean.TRUE);
+	}
+
+	/**
+	 * Keeps the bitmap out of the pool until {@link #release(Bitmap)}, while
+	 * a task that may return it runs
+	 */
+	void retain(Bitmap bitmap) {
+		synchronized (mRetainedBitmaps) {
+			Integer count = mRetainedBitmaps.get(bitmap);
+			mRetainedBitmaps.put(bitmap, count == null ? 1 : count + 1);
+		}
+	}
+
+	void release(Bitmap bitmap) {
+		synchronized (mRetainedBitmaps) {
+			Integer count = mRetainedBitmaps.get(bitmap);
+			if (count == null) return;
+			if (count == 1) {
+				mRetainedBitmaps.remove(bitmap);
+			} else {
+				mRetainedBitmaps.put(bitmap, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the bitmap was handed to a {@link Target}, is retained
+	 * by a running task, or set on a view that has not been given another
+	 * image by a downloader attached to this cache since
+	 */
+	boolean isInUse(Bitmap bitmap) {
+		if (mHandedOutBitmaps.containsKey(bitmap)) return true;
+		synchronized (mRetainedBitmaps) {
+			if (mRetainedBitmaps.containsKey(bitmap)) return true;
+		}
+
+		synchronized (mDisplayedBitmaps) {
+			for (Bitmap displayedBitmap : mDisplayedBitmaps.values()) {
+				if (displayedBitmap == bitmap) return true;
+			}
+		}
+		return false;
+	}
+}
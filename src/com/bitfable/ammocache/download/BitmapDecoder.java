@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.io.FileDescriptor;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+import com.bitfable.ammocache.io.ByteBufferInputStream;
+
+/**
+ * Decodes images no larger than they need to be. The bounds of the image are
+ * read first, then it is decoded with the largest power-of-two
+ * {@link BitmapFactory.Options#inSampleSize} that keeps it at least as large
+ * as the target size.
+ * 
+ * When a {@link BitmapPool} is given, images are decoded as mutable bitmaps so
+ * that they can be reused later, and into a pooled bitmap of the same
+ * dimensions and config when there is one.
+ * 
+ * Images are decoded as {@link Bitmap.Config#ARGB_8888} unless another config
+ * is given. Opaque images can be decoded as {@link Bitmap.Config#RGB_565}
+ * instead, which halves their size, while images that may be translucent
+ * keep the given config.
+ */
+public final class BitmapDecoder {
+	/**
+	 * The only common format that can't have an alpha channel
+	 */
+	private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+	private BitmapDecoder() { }
+
+	/**
+	 * @param targetWidth the minimum width of the decoded image, or 0 or less
+	 * to ignore the width
+	 * @param targetHeight the minimum height of the decoded image, or 0 or
+	 * less to ignore the height
+	 * @return the decoded image, or null if it could not be decoded
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int offset, int length, int targetWidth, int targetHeight) {
+		return decodeByteArray(data, offset, length, targetWidth, targetHeight, null);
+	}
+
+	/**
+	 * @param pool bitmaps to decode into, or null to always allocate a new
+	 * bitmap
+	 * @see #decodeByteArray(byte[], int, int, int, int)
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int offset, int length, int targetWidth, int targetHeight,
+			BitmapPool pool) {
+		return decodeByteArray(data, offset, length, targetWidth, targetHeight, Bitmap.Config.ARGB_8888, false, pool);
+	}
+
+	/**
+	 * @param config the config of the decoded bitmap
+	 * @param opaqueAsRgb565 decode opaque images as RGB_565 instead of config
+	 * @see #decodeByteArray(byte[], int, int, int, int, BitmapPool)
+	 */
+	public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length, int targetWidth,
+			int targetHeight, Bitmap.Config config, boolean opaqueAsRgb565, BitmapPool pool) {
+		return decode(new Source() {
+			@Override
+			public Bitmap decode(BitmapFactory.Options options) {
+				return BitmapFactory.decodeByteArray(data, offset, length, options);
+			}
+		}, targetWidth, targetHeight, config, opaqueAsRgb565, pool);
+	}
+
+	/**
+	 * Decodes the remaining bytes of the buffer, which is not moved. Buffers
+	 * backed by an array are decoded from it, others, such as memory-mapped
+	 * files, are read in place without being copied into an array.
+	 * @see #decodeByteArray(byte[], int, int, int, int, BitmapPool)
+	 */
+	public static Bitmap decodeByteBuffer(ByteBuffer buffer, int targetWidth, int targetHeight, BitmapPool pool) {
+		return decodeByteBuffer(buffer, targetWidth, targetHeight, Bitmap.Config.ARGB_8888, false, pool);
+	}
+
+	/**
+	 * @see #decodeByteBuffer(ByteBuffer, int, int, BitmapPool)
+	 * @see #decodeByteArray(byte[], int, int, int, int, Bitmap.Config, boolean, BitmapPool)
+	 */
+	public static Bitmap decodeByteBuffer(final ByteBuffer buffer, int targetWidth, int targetHeight,
+			Bitmap.Config config, boolean opaqueAsRgb565, BitmapPool pool) {
+		if (buffer.hasArray()) {
+			return decodeByteArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+					targetWidth, targetHeight, config, opaqueAsRgb565, pool);
+		}
+
+		return decode(new Source() {
+			@Override
+			public Bitmap decode(BitmapFactory.Options options) {
+				return BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, options);
+			}
+		}, targetWidth, targetHeight, config, opaqueAsRgb565, pool);
+	}
+
+	/**
+	 * Decodes a seekable file, such as a local file or a content provider
+	 * file, without copying it into memory. The position of the descriptor is
+	 * not changed, so it is read twice when the bounds are needed.
+	 * @see #decodeByteArray(byte[], int, int, int, int, Bitmap.Config, boolean, BitmapPool)
+	 */
+	public static Bitmap decodeFileDescriptor(final FileDescriptor fd, int targetWidth, int targetHeight,
+			Bitmap.Config config, boolean opaqueAsRgb565, BitmapPool pool) {
+		return decode(new Source() {
+			@Override
+			public Bitmap decode(BitmapFactory.Options options) {
+				return BitmapFactory.decodeFileDescriptor(fd, null, options);
+			}
+		}, targetWidth, targetHeight, config, opaqueAsRgb565, pool);
+	}
+
+	/**
+	 * Decodes the stream at its original size, as a mutable bitmap that can
+	 * be put into the pool later if bitmaps can be reused.
+	 * @return the decoded image, or null if it could not be decoded
+	 */
+	public static Bitmap decodeStream(InputStream in, BitmapPool pool) {
+		return decodeStream(in, Bitmap.Config.ARGB_8888, false, pool);
+	}
+
+	/**
+	 * @see #decodeStream(InputStream, BitmapPool)
+	 * @see #decodeByteArray(byte[], int, int, int, int, Bitmap.Config, boolean, BitmapPool)
+	 */
+	public static Bitmap decodeStream(InputStream in, Bitmap.Config config, boolean opaqueAsRgb565, BitmapPool pool) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = chooseConfig(null, config, opaqueAsRgb565);
+		if (pool != null && BitmapPool.isSupported()) options.inMutable = true;
+		return BitmapFactory.decodeStream(in, null, options);
+	}
+
+	/**
+	 * Encoded bytes that can be decoded more than once, for the bounds and
+	 * then the pixels
+	 */
+	private interface Source {
+		Bitmap decode(BitmapFactory.Options options);
+	}
+
+	/**
+	 * Reads the bounds of the source when they are needed to downsample it or
+	 * to find a pooled bitmap, then decodes it with the given config.
+	 */
+	private static Bitmap decode(Source source, int targetWidth, int targetHeight,
+			Bitmap.Config config, boolean opaqueAsRgb565, BitmapPool pool) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		boolean reuseBitmaps = pool != null && BitmapPool.isSupported();
+		if (targetWidth > 0 || targetHeight > 0 || reuseBitmaps) {
+			options.inJustDecodeBounds = true;
+			source.decode(options);
+			if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+			// Without a target size the bounds are only needed for inBitmap
+			if (targetWidth > 0 || targetHeight > 0) {
+				options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+						targetWidth, targetHeight);
+			}
+			options.inJustDecodeBounds = false;
+		}
+		options.inPreferredConfig = chooseConfig(options.outMimeType, config, opaqueAsRgb565);
+
+		if (reuseBitmaps) {
+			options.inMutable = true;
+			// Before KitKat the decoded size must match exactly, which is only
+			// known in advance without downsampling
+			if (options.inSampleSize == 1) {
+				options.inBitmap = pool.get(options.outWidth, options.outHeight, options.inPreferredConfig);
+			}
+		}
+
+		try {
+			return source.decode(options);
+		} catch (IllegalArgumentException e) {
+			// The pooled bitmap turned out not to be compatible. inBitmap only
+			// exists from Honeycomb, which reuseBitmaps already checked
+			if (!reuseBitmaps || options.inBitmap == null) throw e;
+			options.inBitmap = null;
+			return source.decode(options);
+		}
+	}
+
+	/**
+	 * @param mimeType the type of the image from its bounds, or null if they
+	 * were not read. The platform decoders then keep images with an alpha
+	 * channel in ARGB_8888 even when RGB_565 is asked for.
+	 */
+	private static Bitmap.Config chooseConfig(String mimeType, Bitmap.Config config, boolean opaqueAsRgb565) {
+		if (opaqueAsRgb565 && (mimeType == null || MIME_TYPE_JPEG.equals(mimeType))) {
+			return Bitmap.Config.RGB_565;
+		}
+		return config;
+	}
+
+	/**
+	 * @return the largest power of two that keeps an image of the given size
+	 * at least as large as the target size once divided by it, or 1 when
+	 * there is no target size
+	 */
+	public static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		return InSampleSize.calculate(width, height, targetWidth, targetHeight);
+	}
+}
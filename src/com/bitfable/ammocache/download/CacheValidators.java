@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.util.Locale;
+
+/**
+ * What a server said about a cached image: the validators used to ask it
+ * whether the image changed, and until when the image can be used without
+ * asking.
+ */
+public final class CacheValidators {
+	/**
+	 * Expiry of validators from a response that didn't say how long it can
+	 * be used. The downloader replaces it with its default max age.
+	 */
+	public static final long UNKNOWN_EXPIRY = -1;
+
+	private final String mETag;
+	private final String mLastModified;
+	private final long mExpiresAt;
+
+	/**
+	 * @param eTag the ETag header, or null
+	 * @param lastModified the Last-Modified header, or null
+	 * @param expiresAt the time in milliseconds since the epoch after which
+	 * the image must be revalidated, or {@link #UNKNOWN_EXPIRY}
+	 */
+	public CacheValidators(String eTag, String lastModified, long expiresAt) {
+		mETag = eTag;
+		mLastModified = lastModified;
+		mExpiresAt = expiresAt;
+	}
+
+	/**
+	 * Reads the freshness of a response from its headers. Cache-Control
+	 * takes precedence over Expires, no-cache and no-store make the response
+	 * stale right away.
+	 * @param expires the Expires header, or 0 if it is missing
+	 * @param date the Date header, or 0 if it is missing
+	 * @param now the current time in milliseconds since the epoch
+	 */
+	public static CacheValidators fromHeaders(String eTag, String lastModified, String cacheControl,
+			long expires, long date, long now) {
+		long expiresAt = UNKNOWN_EXPIRY;
+		long maxAgeSeconds = parseMaxAge(cacheControl);
+		if (maxAgeSeconds >= 0) {
+			expiresAt = now + maxAgeSeconds * 1000;
+		} else if (expires > 0) {
+			// Relative to the server's clock when it sent its own
+			expiresAt = date > 0 ? now + Math.max(expires - date, 0) : expires;
+		}
+		return new CacheValidators(eTag, lastModified, expiresAt);
+	}
+
+	/**
+	 * @return the max age in seconds, 0 for no-cache and no-store, or -1 if
+	 * the header doesn't say
+	 */
+	private static long parseMaxAge(String cacheControl) {
+		if (cacheControl == null) return -1;
+
+		for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+			directive = directive.trim();
+			if (directive.equals("no-cache") || directive.equals("no-store")) return 0;
+			if (directive.startsWith("max-age=")) {
+				try {
+					return Math.max(Long.parseLong(directive.substring("max-age=".length()).trim()), 0);
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	public String getETag() {
+		return mETag;
+	}
+
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	/**
+	 * @return the time in milliseconds since the epoch after which the image
+	 * must be revalidated, or {@link #UNKNOWN_EXPIRY}
+	 */
+	public long getExpiresAt() {
+		return mExpiresAt;
+	}
+
+	/**
+	 * @return true if the server can be asked whether the image changed
+	 */
+	public boolean canRevalidate() {
+		return mETag != null || mLastModified != null;
+	}
+
+	public boolean isExpired(long now) {
+		return mExpiresAt != UNKNOWN_EXPIRY && now >= mExpiresAt;
+	}
+
+	/**
+	 * @return validators with the given expiry
+	 */
+	CacheValidators withExpiresAt(long expiresAt) {
+		return new CacheValidators(mETag, mLastModified, expiresAt);
+	}
+
+	/**
+	 * A 304 response only has to repeat the validators that changed.
+	 * @return these validators, with the ones missing taken from the cached
+	 * validators
+	 */
+	CacheValidators mergeWith(CacheValidators cached) {
+		return new CacheValidators(mETag != null ? mETag : cached.mETag,
+				mLastModified != null ? mLastModified : cached.mLastModified, mExpiresAt);
+	}
+
+	/**
+	 * @return the validators on three lines, see {@link #decode(String)}
+	 */
+	String encode() {
+		return mExpiresAt + "\n" + (mETag == null ? "" : mETag) + "\n"
+				+ (mLastModified == null ? "" : mLastModified);
+	}
+
+	/**
+	 * @return the validators written by {@link #encode()}, or null if the
+	 * string is malformed
+	 */
+	static CacheValidators decode(String encoded) {
+		String[] lines = encoded.split("\n", -1);
+		if (lines.length != 3) return null;
+
+		try {
+			return new CacheValidators(lines[1].length() == 0 ? null : lines[1],
+					lines[2].length() == 0 ? null : lines[2], Long.parseLong(lines[0]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
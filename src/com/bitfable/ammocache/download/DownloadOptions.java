@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+import com.bitfable.ammocache.download.AbstractImageDownloader.ProgressListener;
+import com.bitfable.ammocache.transform.Transformation;
+
+/**
+ * Optional settings for
+ * {@link AbstractImageDownloader#download(String, android.widget.ImageView, DownloadOptions)}.
+ * Like BitmapFactory.Options, the fields are meant to be set directly.
+ */
+public class DownloadOptions {
+	/**
+	 * Use the size of the ImageView as the target size
+	 */
+	public static final int SIZE_FROM_VIEW = 0;
+
+	/**
+	 * Decode the image at its original size
+	 */
+	public static final int SIZE_ORIGINAL = -1;
+
+	/**
+	 * Shown while the image is downloading, or null for a transparent drawable
+	 */
+	public Bitmap defaultBitmap;
+
+	/**
+	 * Told about the progress of the download, or null
+	 */
+	public ProgressListener progressListener;
+
+	/**
+	 * Priority of the download if the image is not cached, see
+	 * {@link ImageDispatcher#PRIORITY_NORMAL}
+	 */
+	public int priority = ImageDispatcher.PRIORITY_NORMAL;
+
+	/**
+	 * The image is downsampled by a power of two while decoding, as long as
+	 * it stays at least this wide and high. Either {@link #SIZE_FROM_VIEW},
+	 * {@link #SIZE_ORIGINAL} or a size in pixels.
+	 */
+	public int targetWidth = SIZE_FROM_VIEW;
+
+	/**
+	 * See {@link #targetWidth}
+	 */
+	public int targetHeight = SIZE_FROM_VIEW;
+
+	/**
+	 * Groups loads so that they can be paused together with
+	 * {@link AbstractImageDownloader#pause(Object)}, or null
+	 */
+	public Object tag;
+
+	/**
+	 * Applied in order to the decoded image on the background thread, or
+	 * null. The result is cached under a key that includes the
+	 * transformations, so it is only computed once.
+	 */
+	public List<Transformation> transformations;
+
+	/**
+	 * The config the image is decoded with, or null for the default of the
+	 * downloader, see {@link AbstractImageDownloader#setDefaultBitmapConfig(Bitmap.Config)}.
+	 * An explicit config is never replaced by RGB_565 when memory is tight.
+	 */
+	public Bitmap.Config bitmapConfig;
+}
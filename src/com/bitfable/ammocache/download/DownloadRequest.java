@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+/**
+ * A load handed to {@link AbstractImageDownloader#download(DownloadRequest)}.
+ * Concurrent requests for the same key share one load, so a request is only
+ * cancelled once every view waiting for it has gone away.
+ */
+public final class DownloadRequest {
+	/**
+	 * Receives progress reported by the implementation
+	 */
+	interface ProgressPublisher {
+		void publishProgress(int progress);
+	}
+
+	/**
+	 * See {@link DownloadRequest#setOnCancelListener(OnCancelListener)}
+	 */
+	public interface OnCancelListener {
+		/**
+		 * Called on the thread cancelling the request, usually the main
+		 * thread, so it must not block.
+		 */
+		void onCancel();
+	}
+
+	private final String mKey;
+	private final int mTargetWidth;
+	private final int mTargetHeight;
+	private final boolean mDiskOnly;
+	private final ProgressPublisher mProgressPublisher;
+	private volatile boolean mCancelled;
+	// Guarded by this
+	private OnCancelListener mOnCancelListener;
+	// Only accessed by the thread running the request
+	private long mBytesDownloaded;
+	private long mDecodeNanos = -1;
+	private CacheValidators mCachedValidators;
+	private CacheValidators mResponseValidators;
+	private boolean mNotModified;
+
+	/**
+	 * Creates a request for the image at its original size, to use a
+	 * {@link UrlFetcher} on its own. Its progress is not reported.
+	 */
+	public DownloadRequest(String key) {
+		this(key, 0, 0, false, null);
+	}
+
+	DownloadRequest(String key, int targetWidth, int targetHeight, ProgressPublisher progressPublisher) {
+		this(key, targetWidth, targetHeight, false, progressPublisher);
+	}
+
+	DownloadRequest(String key, int targetWidth, int targetHeight, boolean diskOnly,
+			ProgressPublisher progressPublisher) {
+		mKey = key;
+		mTargetWidth = targetWidth;
+		mTargetHeight = targetHeight;
+		mDiskOnly = diskOnly;
+		mProgressPublisher = progressPublisher;
+	}
+
+	/**
+	 * @return the key used for the in-memory cache and for sharing downloads,
+	 * which includes the target size so that different sizes of the same
+	 * image don't collide
+	 */
+	static String getCacheKey(String key, int targetWidth, int targetHeight) {
+		if (targetWidth <= 0 && targetHeight <= 0) return key;
+		return key + '@' + Math.max(targetWidth, 0) + 'x' + Math.max(targetHeight, 0);
+	}
+
+	/**
+	 * @return the key of the image to download
+	 */
+	public String getKey() {
+		return mKey;
+	}
+
+	/**
+	 * @return the minimum width the image should be decoded at, or 0 or less
+	 * for its original width. See {@link BitmapDecoder}.
+	 */
+	public int getTargetWidth() {
+		return mTargetWidth;
+	}
+
+	/**
+	 * @return the minimum height the image should be decoded at, or 0 or less
+	 * for its original height. See {@link BitmapDecoder}.
+	 */
+	public int getTargetHeight() {
+		return mTargetHeight;
+	}
+
+	/**
+	 * A disk-only request is a prefetch that nobody will display yet.
+	 * Implementations should store the encoded image with
+	 * {@link AbstractImageDownloader#editDiskCache(String)} or
+	 * {@link AbstractImageDownloader#addToDiskCache(String, byte[], int, int)}
+	 * without decoding it, and return null.
+	 * @return true if only the disk cache needs to be filled
+	 */
+	public boolean isDiskOnly() {
+		return mDiskOnly;
+	}
+
+	/**
+	 * Implementations should check this regularly and give up as soon as it
+	 * returns true.
+	 * @return true if nobody is waiting for the image anymore
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Sets the listener told when the request is cancelled, so that a read
+	 * blocked on the network can be aborted by closing its connection. It
+	 * is called right away if the request is already cancelled.
+	 * Implementations should clear it with null once the connection is
+	 * closed.
+	 */
+	public void setOnCancelListener(OnCancelListener listener) {
+		synchronized (this) {
+			if (!mCancelled) {
+				mOnCancelListener = listener;
+				return;
+			}
+		}
+		if (listener != null) listener.onCancel();
+	}
+
+	/**
+	 * Reports the progress of the download so far, see
+	 * {@link AbstractImageDownloader.ProgressListener}
+	 */
+	public void publishProgress(int progress) {
+		if (mProgressPublisher != null) mProgressPublisher.publishProgress(progress);
+	}
+
+	ProgressPublisher getProgressPublisher() {
+		return mProgressPublisher;
+	}
+
+	/**
+	 * Counts encoded bytes read from the network, for
+	 * {@link StatsSnapshot#bytesDownloaded}. {@link RequestInputStream} calls
+	 * this for every read.
+	 */
+	public void addBytesDownloaded(long count) {
+		mBytesDownloaded += count;
+	}
+
+	/**
+	 * @return the number of encoded bytes read from the network so far
+	 */
+	public long getBytesDownloaded() {
+		return mBytesDownloaded;
+	}
+
+	/**
+	 * Reports the time spent decoding the image, for
+	 * {@link StatsSnapshot#decodeLatency}. Implementations that decode while
+	 * downloading don't need to call this.
+	 */
+	public void setDecodeTime(long nanos) {
+		mDecodeNanos = nanos;
+	}
+
+	/**
+	 * @return the time reported with {@link #setDecodeTime(long)}, or -1
+	 */
+	long getDecodeTime() {
+		return mDecodeNanos;
+	}
+
+	/**
+	 * Implementations should send a conditional request with these
+	 * validators, with If-None-Match and If-Modified-Since for HTTP, and
+	 * call {@link #setNotModified()} if the server says the image did not
+	 * change.
+	 * @return the validators of the cached image, or null if it is not
+	 * cached or does not need to be revalidated
+	 */
+	public CacheValidators getCachedValidators() {
+		return mCachedValidators;
+	}
+
+	void setCachedValidators(CacheValidators validators) {
+		mCachedValidators = validators;
+	}
+
+	/**
+	 * Reports the validators and freshness of the response, so that the
+	 * image is revalidated once it expires.
+	 */
+	public void setResponseValidators(CacheValidators validators) {
+		mResponseValidators = validators;
+	}
+
+	CacheValidators getResponseValidators() {
+		return mResponseValidators;
+	}
+
+	/**
+	 * Tells the downloader that the image did not change since it was
+	 * cached, {@link AbstractImageDownloader#download(DownloadRequest)}
+	 * should then return null. The cached image is used again, without
+	 * decoding it if it is still in memory.
+	 */
+	public void setNotModified() {
+		mNotModified = true;
+	}
+
+	boolean isNotModified() {
+		return mNotModified;
+	}
+
+	void cancel() {
+		OnCancelListener listener;
+		synchronized (this) {
+			if (mCancelled) return;
+			mCancelled = true;
+			listener = mOnCancelListener;
+			mOnCancelListener = null;
+		}
+		if (listener != null) listener.onCancel();
+	}
+}
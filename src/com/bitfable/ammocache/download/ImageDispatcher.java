@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs image loads on a bounded number of threads owned by a downloader.
+ * Queued tasks with a higher priority run first. Tasks with the same priority
+ * run last-in first-out by default, so that the images the user is looking at
+ * right now are loaded before the ones already scrolled past.
+ */
+public class ImageDispatcher {
+	public static final int PRIORITY_LOW = -10;
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_HIGH = 10;
+
+	/**
+	 * Number of threads used when no explicit count is given
+	 */
+	public static final int DEFAULT_THREAD_COUNT = 3;
+
+	/**
+	 * Idle worker threads are stopped after this long
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final ThreadPoolExecutor mExecutor;
+	private volatile boolean mLifo = true;
+	private long mSequence;
+
+	private final AtomicLong mStartedCount = new AtomicLong();
+	private final AtomicLong mTotalWaitNanos = new AtomicLong();
+	private final AtomicLong mMaxWaitNanos = new AtomicLong();
+
+	public ImageDispatcher() {
+		this(DEFAULT_THREAD_COUNT, null);
+	}
+
+	/**
+	 * @param threadCount the maximum number of tasks running at once
+	 * @param threadFactory creates the worker threads, or null for the default
+	 */
+	public ImageDispatcher(int threadCount, ThreadFactory threadFactory) {
+		if (threadCount <= 0) throw new IllegalArgumentException("threadCount <= 0");
+
+		mExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>()) {
+			@Override
+			protected void beforeExecute(Thread thread, Runnable runnable) {
+				recordWait(System.nanoTime() - ((Task) runnable).mEnqueueTimeNanos);
+			}
+		};
+		mExecutor.allowCoreThreadTimeOut(true);
+		if (threadFactory != null) mExecutor.setThreadFactory(threadFactory);
+	}
+
+	/**
+	 * Queues the task, it will run once a thread is free and no task with a
+	 * higher priority or a more recent one with the same priority is waiting.
+	 */
+	public void execute(Task task) {
+		synchronized (this) {
+			task.mOrder = mLifo ? ++mSequence : -(++mSequence);
+		}
+		task.mEnqueueTimeNanos = System.nanoTime();
+		mExecutor.execute(task);
+	}
+
+	/**
+	 * Queues a task taken out of the queue with {@link #remove(Task)} again,
+	 * in the place it had among the tasks of its priority, so that a task
+	 * held back for a while does not jump ahead of the more recent ones.
+	 * Tasks that were never queued are queued as new ones.
+	 */
+	public void requeue(Task task) {
+		if (task.mOrder == 0) {
+			execute(task);
+			return;
+		}
+		task.mEnqueueTimeNanos = System.nanoTime();
+		mExecutor.execute(task);
+	}
+
+	/**
+	 * Removes the task from the queue if it has not started yet.
+	 * @return true if the task was removed
+	 */
+	public boolean remove(Task task) {
+		return mExecutor.remove(task);
+	}
+
+	/**
+	 * Changes the priority of a task. If it is still queued it is re-queued as
+	 * if it had just been executed.
+	 */
+	public void setPriority(Task task, int priority) {
+		if (remove(task)) {
+			task.mPriority = priority;
+			execute(task);
+		} else {
+			task.mPriority = priority;
+		}
+	}
+
+	/**
+	 * @param lifo true to run the most recent of the tasks with the same
+	 * priority first, false to run them in order. Only affects tasks executed
+	 * after this call.
+	 */
+	public void setLifo(boolean lifo) {
+		mLifo = lifo;
+	}
+
+	public boolean isLifo() {
+		return mLifo;
+	}
+
+	/**
+	 * @param threadCount the maximum number of tasks running at once
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount <= 0) throw new IllegalArgumentException("threadCount <= 0");
+
+		// Keep core <= max at every step
+		if (threadCount > mExecutor.getMaximumPoolSize()) {
+			mExecutor.setMaximumPoolSize(threadCount);
+			mExecutor.setCorePoolSize(threadCount);
+		} else {
+			mExecutor.setCorePoolSize(threadCount);
+			mExecutor.setMaximumPoolSize(threadCount);
+		}
+	}
+
+	public int getThreadCount() {
+		return mExecutor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return mExecutor.getQueue().size();
+	}
+
+	/**
+	 * @return the approximate number of tasks running right now
+	 */
+	public int getActiveCount() {
+		return mExecutor.getActiveCount();
+	}
+
+	/**
+	 * @return the number of tasks that have started running
+	 */
+	public long getStartedCount() {
+		return mStartedCount.get();
+	}
+
+	/**
+	 * @return the average time tasks spent in the queue before running
+	 */
+	public long getAverageWaitMillis() {
+		long started = mStartedCount.get();
+		if (started == 0) return 0;
+		return TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get() / started);
+	}
+
+	/**
+	 * @return the longest time a task spent in the queue before running
+	 */
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+	}
+
+	private void recordWait(long waitNanos) {
+		mStartedCount.incrementAndGet();
+		mTotalWaitNanos.addAndGet(waitNanos);
+
+		long max;
+		do {
+			max = mMaxWaitNanos.get();
+		} while (waitNanos > max && !mMaxWaitNanos.compareAndSet(max, waitNanos));
+	}
+
+	/**
+	 * Stops accepting tasks, tasks already queued still run.
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * A unit of work run by an {@link ImageDispatcher}.
+	 */
+	public static abstract class Task implements Runnable, Comparable<Task> {
+		private volatile int mPriority;
+		// 0 until the task is first queued
+		private long mOrder;
+		private long mEnqueueTimeNanos;
+
+		protected Task(int priority) {
+			mPriority = priority;
+		}
+
+		public int getPriority() {
+			return mPriority;
+		}
+
+		@Override
+		public int compareTo(Task another) {
+			// Higher priority first, then higher order first
+			if (mPriority != another.mPriority) {
+				return mPriority > another.mPriority ? -1 : 1;
+			}
+			if (mOrder != another.mOrder) {
+				return mOrder > another.mOrder ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bitfable.ammocache.cache.MemoryCache;
+
+/**
+ * Counters updated by a downloader from any thread, the in-memory cache
+ * keeps its own. See {@link StatsSnapshot} for what they mean.
+ */
+final class ImageStats {
+	final AtomicLong mEncodedHits = new AtomicLong();
+	final AtomicLong mEncodedMisses = new AtomicLong();
+	final AtomicLong mDiskHits = new AtomicLong();
+	final AtomicLong mDiskMisses = new AtomicLong();
+	final AtomicLong mNetworkHits = new AtomicLong();
+	final AtomicLong mNetworkMisses = new AtomicLong();
+	final AtomicLong mNotModified = new AtomicLong();
+	final AtomicLong mBytesDownloaded = new AtomicLong();
+	final AtomicLong mBytesDecoded = new AtomicLong();
+	final AtomicLong mCancellations = new AtomicLong();
+	final LatencyHistogram mDownloadLatency = new LatencyHistogram();
+	final LatencyHistogram mDecodeLatency = new LatencyHistogram();
+
+	StatsSnapshot snapshot(MemoryCache<?, ?> memoryCache) {
+		return new StatsSnapshot(this, memoryCache);
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+/**
+ * The downsampling math of {@link BitmapDecoder}, kept free of Android classes
+ * so that it can be tested on a plain JVM.
+ */
+final class InSampleSize {
+	private InSampleSize() { }
+
+	/**
+	 * @see BitmapDecoder#calculateInSampleSize(int, int, int, int)
+	 */
+	static int calculate(int width, int height, int targetWidth, int targetHeight) {
+		// Without a target the image is kept at its original size
+		if (targetWidth <= 0 && targetHeight <= 0) return 1;
+
+		int inSampleSize = 1;
+		while (fits(width / (inSampleSize * 2), targetWidth)
+				&& fits(height / (inSampleSize * 2), targetHeight)) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	private static boolean fits(int sampledSize, int targetSize) {
+		return sampledSize > 0 && (targetSize <= 0 || sampledSize >= targetSize);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets whose upper bounds double from 1 millisecond,
+ * so that it takes a fixed amount of memory however many durations are
+ * recorded. Bucket i counts the durations shorter than 2^i milliseconds, and
+ * the last bucket counts everything longer.
+ *
+ * The histograms returned by {@link AbstractImageDownloader#getStats()} are
+ * copies that don't change anymore.
+ */
+public final class LatencyHistogram {
+	/**
+	 * Number of buckets, the last one is unbounded
+	 */
+	public static final int BUCKET_COUNT = 16;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotalNanos = new AtomicLong();
+	private final AtomicLong mMaxNanos = new AtomicLong();
+
+	LatencyHistogram() { }
+
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+
+		mBuckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMillis(nanos)));
+		mCount.incrementAndGet();
+		mTotalNanos.addAndGet(nanos);
+
+		long max;
+		do {
+			max = mMaxNanos.get();
+		} while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+	}
+
+	/**
+	 * @return a copy of the histogram that won't record anything else
+	 */
+	LatencyHistogram snapshot() {
+		LatencyHistogram copy = new LatencyHistogram();
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy.mBuckets.set(i, mBuckets.get(i));
+		}
+		copy.mCount.set(mCount.get());
+		copy.mTotalNanos.set(mTotalNanos.get());
+		copy.mMaxNanos.set(mMaxNanos.get());
+		return copy;
+	}
+
+	private static int bucketOf(long millis) {
+		int bucket = 0;
+		while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) bucket++;
+		return bucket;
+	}
+
+	/**
+	 * @return the number of recorded durations
+	 */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return the number of durations in the bucket
+	 */
+	public long getCount(int bucket) {
+		return mBuckets.get(bucket);
+	}
+
+	/**
+	 * @return the exclusive upper bound of the bucket, or
+	 * {@link Long#MAX_VALUE} for the last one
+	 */
+	public static long getUpperBoundMillis(int bucket) {
+		if (bucket == BUCKET_COUNT - 1) return Long.MAX_VALUE;
+		return 1L << bucket;
+	}
+
+	public double getMeanMillis() {
+		long count = mCount.get();
+		if (count == 0) return 0;
+		return mTotalNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public long getMaxMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mMaxNanos.get());
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, capped
+	 * at the longest duration, or 0 if nothing was recorded
+	 */
+	public long getPercentileMillis(double percentile) {
+		long count = mCount.get();
+		if (count == 0) return 0;
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mBuckets.get(i);
+			if (seen >= rank) return Math.min(getUpperBoundMillis(i), getMaxMillis());
+		}
+		return getMaxMillis();
+	}
+
+	@Override
+	public String toString() {
+		return "{count=" + getCount()
+				+ ", mean=" + String.format("%.1f", getMeanMillis())
+				+ ", p50=" + getPercentileMillis(50)
+				+ ", p90=" + getPercentileMillis(90)
+				+ ", p99=" + getPercentileMillis(99)
+				+ ", max=" + getMaxMillis() + "}";
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Pauses the loads of a downloader while a list is flung, and resumes them
+ * once it stops, so that rows that only fly by don't start downloads. Set it
+ * with {@link AbsListView#setOnScrollListener(OnScrollListener)}.
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+	private final AbstractImageDownloader mImageDownloader;
+	private final Object mTag;
+	private final boolean mPauseOnTouchScroll;
+	private final OnScrollListener mDelegate;
+
+	/**
+	 * Pauses every load during flings only
+	 */
+	public PauseOnScrollListener(AbstractImageDownloader imageDownloader) {
+		this(imageDownloader, null, false, null);
+	}
+
+	/**
+	 * @param tag only pause the loads with this {@link DownloadOptions#tag},
+	 * or null for every load
+	 * @param pauseOnTouchScroll also pause while the list is dragged
+	 * @param delegate also told about the scroll events, or null
+	 */
+	public PauseOnScrollListener(AbstractImageDownloader imageDownloader, Object tag,
+			boolean pauseOnTouchScroll, OnScrollListener delegate) {
+		mImageDownloader = imageDownloader;
+		mTag = tag;
+		mPauseOnTouchScroll = pauseOnTouchScroll;
+		mDelegate = delegate;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		boolean pause = scrollState == SCROLL_STATE_FLING
+				|| (scrollState == SCROLL_STATE_TOUCH_SCROLL && mPauseOnTouchScroll);
+		if (pause) {
+			if (mTag == null) {
+				mImageDownloader.pause();
+			} else {
+				mImageDownloader.pause(mTag);
+			}
+		} else {
+			if (mTag == null) {
+				mImageDownloader.resume();
+			} else {
+				mImageDownloader.resume(mTag);
+			}
+		}
+
+		if (mDelegate != null) mDelegate.onScrollStateChanged(view, scrollState);
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (mDelegate != null) mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+	}
+}
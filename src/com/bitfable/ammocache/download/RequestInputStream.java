@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Wraps the stream of a download so that reading it reports the progress of
+ * the {@link DownloadRequest} and stops with an
+ * {@link InterruptedIOException} once the request is cancelled.
+ */
+public class RequestInputStream extends FilterInputStream {
+	private final DownloadRequest mRequest;
+	private final int mContentLength;
+	private int mBytesRead;
+	private boolean mAtEnd;
+
+	/**
+	 * @param contentLength the length of the stream used to compute the
+	 * progress, or 0 or less if it is not known
+	 */
+	public RequestInputStream(InputStream in, int contentLength, DownloadRequest request) {
+		super(in);
+		mRequest = request;
+		mContentLength = contentLength;
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkCancelled();
+		int oneByte = in.read();
+		if (oneByte == -1) {
+			mAtEnd = true;
+		} else {
+			onBytesRead(1);
+		}
+		return oneByte;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		checkCancelled();
+		int read = in.read(buffer, offset, count);
+		if (read == -1) {
+			mAtEnd = true;
+		} else if (read > 0) {
+			onBytesRead(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkCancelled();
+		long skipped = in.skip(n);
+		if (skipped > 0) onBytesRead((int) skipped);
+		return skipped;
+	}
+
+	/**
+	 * @return the number of bytes read so far
+	 */
+	public int getBytesRead() {
+		return mBytesRead;
+	}
+
+	/**
+	 * @return true once the whole stream has been read
+	 */
+	public boolean isAtEnd() {
+		return mAtEnd || (mContentLength > 0 && mBytesRead >= mContentLength);
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (mRequest.isCancelled()) throw new InterruptedIOException("download cancelled: " + mRequest.getKey());
+	}
+
+	private void onBytesRead(int count) {
+		mBytesRead += count;
+		mRequest.addBytesDownloaded(count);
+		if (mContentLength > 0) {
+			mRequest.publishProgress((int) ((long) mBytesRead * 100 / mContentLength));
+		}
+	}
+}
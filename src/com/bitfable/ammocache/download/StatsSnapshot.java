@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import com.bitfable.ammocache.cache.MemoryCache;
+
+/**
+ * The counters of a downloader at one point in time, returned by
+ * {@link AbstractImageDownloader#getStats()}. Every count is since the
+ * downloader was created.
+ */
+public final class StatsSnapshot {
+	/**
+	 * Lookups found in the in-memory LRU cache, and not found there. These
+	 * and the other in-memory counts include the lookups of every downloader
+	 * sharing the {@link BitmapCache}.
+	 */
+	public final long hardHits;
+	public final long hardMisses;
+
+	/**
+	 * Lookups that missed the LRU cache and were found in the bounded soft
+	 * reference cache, and not found there
+	 */
+	public final long softHits;
+	public final long softMisses;
+
+	/**
+	 * Loads decoded from the in-memory tier of encoded images, and not found
+	 * there. Both are 0 if the tier is disabled, see
+	 * {@link BitmapCache#setEncodedCacheMaxBytes(int)}.
+	 */
+	public final long encodedHits;
+	public final long encodedMisses;
+
+	/**
+	 * Loads decoded from the disk cache, and not found there. Both are 0 if
+	 * the disk cache is disabled.
+	 */
+	public final long diskHits;
+	public final long diskMisses;
+
+	/**
+	 * Downloads that produced an image, and downloads that failed. Cancelled
+	 * downloads and prefetches that only fill the disk cache are not counted.
+	 * Images opened by an ImageLoader, such as local files, are counted here
+	 * too.
+	 */
+	public final long networkHits;
+	public final long networkMisses;
+
+	/**
+	 * Revalidations of expired images that the server answered with 304 Not
+	 * Modified, so that the cached image was used again
+	 */
+	public final long notModified;
+
+	/**
+	 * Encoded bytes read from the network, including by prefetches
+	 */
+	public final long bytesDownloaded;
+
+	/**
+	 * Bytes of pixels of the decoded bitmaps
+	 */
+	public final long bytesDecoded;
+
+	/**
+	 * Bitmaps pushed out of the in-memory LRU cache
+	 */
+	public final long evictions;
+
+	/**
+	 * Bitmaps kept out of the in-memory LRU cache by the admission policy,
+	 * which are included in {@link #evictions}. Always 0 unless it is
+	 * enabled, see {@link BitmapCache#BitmapCache(int, boolean)}.
+	 */
+	public final long rejections;
+
+	/**
+	 * Bitmaps pushed out of the soft reference cache by its maximum size,
+	 * and cleared from it by the garbage collector
+	 */
+	public final long softEvictions;
+	public final long softCollected;
+
+	/**
+	 * Loads cancelled because no view or download was waiting for them
+	 */
+	public final long cancellations;
+
+	/**
+	 * Time spent in {@link AbstractImageDownloader#download(DownloadRequest)},
+	 * which includes decoding for implementations that decode while
+	 * downloading
+	 */
+	public final LatencyHistogram downloadLatency;
+
+	/**
+	 * Time spent decoding images that were read in full first, from the disk
+	 * cache or from the network
+	 */
+	public final LatencyHistogram decodeLatency;
+
+	public final int hardCacheSize;
+	public final int hardCacheMaxSize;
+	public final int softCacheSize;
+	public final int softCacheMaxSize;
+
+	StatsSnapshot(ImageStats stats, MemoryCache<?, ?> memoryCache) {
+		hardHits = memoryCache.getHardHitCount();
+		hardMisses = memoryCache.getHardMissCount();
+		softHits = memoryCache.getSoftHitCount();
+		softMisses = memoryCache.getSoftMissCount();
+		encodedHits = stats.mEncodedHits.get();
+		encodedMisses = stats.mEncodedMisses.get();
+		diskHits = stats.mDiskHits.get();
+		diskMisses = stats.mDiskMisses.get();
+		networkHits = stats.mNetworkHits.get();
+		networkMisses = stats.mNetworkMisses.get();
+		notModified = stats.mNotModified.get();
+		bytesDownloaded = stats.mBytesDownloaded.get();
+		bytesDecoded = stats.mBytesDecoded.get();
+		evictions = memoryCache.getEvictionCount();
+		rejections = memoryCache.getRejectionCount();
+		softEvictions = memoryCache.getSoftEvictionCount();
+		softCollected = memoryCache.getSoftCollectedCount();
+		cancellations = stats.mCancellations.get();
+		downloadLatency = stats.mDownloadLatency.snapshot();
+		decodeLatency = stats.mDecodeLatency.snapshot();
+		hardCacheSize = memoryCache.size();
+		hardCacheMaxSize = memoryCache.maxSize();
+		softCacheSize = memoryCache.softSize();
+		softCacheMaxSize = memoryCache.softMaxSize();
+	}
+
+	/**
+	 * @return the fraction of lookups found in the in-memory LRU cache
+	 */
+	public double getHardHitRate() {
+		return hitRate(hardHits, hardMisses);
+	}
+
+	/**
+	 * @return the fraction of the lookups that missed the LRU cache found in
+	 * the soft reference cache
+	 */
+	public double getSoftHitRate() {
+		return hitRate(softHits, softMisses);
+	}
+
+	public double getEncodedHitRate() {
+		return hitRate(encodedHits, encodedMisses);
+	}
+
+	public double getDiskHitRate() {
+		return hitRate(diskHits, diskMisses);
+	}
+
+	public double getNetworkSuccessRate() {
+		return hitRate(networkHits, networkMisses);
+	}
+
+	private static double hitRate(long hits, long misses) {
+		long total = hits + misses;
+		return total == 0 ? 0 : hits / (double) total;
+	}
+
+	@Override
+	public String toString() {
+		return "StatsSnapshot{hard=" + hardHits + "/" + (hardHits + hardMisses)
+				+ ", soft=" + softHits + "/" + (softHits + softMisses)
+				+ ", encoded=" + encodedHits + "/" + (encodedHits + encodedMisses)
+				+ ", disk=" + diskHits + "/" + (diskHits + diskMisses)
+				+ ", network=" + networkHits + "/" + (networkHits + networkMisses)
+				+ ", notModified=" + notModified
+				+ ", bytesDownloaded=" + bytesDownloaded
+				+ ", bytesDecoded=" + bytesDecoded
+				+ ", evictions=" + evictions
+				+ ", rejections=" + rejections
+				+ ", softEvictions=" + softEvictions
+				+ ", softCollected=" + softCollected
+				+ ", cancellations=" + cancellations
+				+ ", hardCacheSize=" + hardCacheSize + "/" + hardCacheMaxSize
+				+ ", softCacheSize=" + softCacheSize + "/" + softCacheMaxSize
+				+ ", downloadLatency=" + downloadLatency
+				+ ", decodeLatency=" + decodeLatency + "}";
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import android.graphics.Bitmap;
+
+/**
+ * Receives an image loaded without an ImageView, for notifications, widgets
+ * or map markers, see
+ * {@link AbstractImageDownloader#load(String, Target, DownloadOptions)}.
+ * Targets are held strongly until one of the methods is called or the load
+ * is cancelled with {@link AbstractImageDownloader#cancel(Target)}.
+ */
+public interface Target {
+	/**
+	 * Called on the main thread with the image, right away if it is in
+	 * memory. The bitmap may be shared with views and other targets, it must
+	 * not be modified or recycled.
+	 */
+	void onImageLoaded(Bitmap bitmap);
+
+	/**
+	 * Called on the main thread when the image could not be loaded
+	 */
+	void onImageFailed();
+}
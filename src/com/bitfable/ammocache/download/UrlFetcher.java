@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bitfable.ammocache.io.ByteArrayPool;
+import com.bitfable.ammocache.io.PoolingByteArrayOutputStream;
+
+/**
+ * Fetches the encoded bytes of a {@link DownloadRequest} over
+ * {@link HttpURLConnection}, for {@link UrlImageDownloader}. It does not
+ * depend on Android, so that the network path can be measured on a plain JVM.
+ *
+ * Connections are kept alive and reused through the connection pool of
+ * HttpURLConnection: a response whose body was read to the end is only
+ * closed, not disconnected. At most {@link #DEFAULT_MAX_CONNECTIONS_PER_HOST}
+ * requests to the same host are open at once, which is no more than the
+ * idle connections the pool keeps per host, so that every connection can be
+ * reused. A list of requests to one host can be fetched with
+ * {@link #fetchAll(List, Executor, ResponseHandler)}.
+ */
+public class UrlFetcher {
+	/**
+	 * Initial size of the download buffer when the content length is unknown
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	private static final int COPY_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * Number of requests to the same host that can be open at once when no
+	 * other limit is given. The connection pool of HttpURLConnection keeps 5
+	 * idle connections per host by default, see the http.maxConnections
+	 * system property.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+	/**
+	 * How often a request waiting for a connection to its host checks
+	 * whether it was cancelled
+	 */
+	private static final int PERMIT_POLL_MILLIS = 10;
+
+	/**
+	 * Number of threads closing the connections of cancelled requests
+	 */
+	private static final int DISCONNECTOR_THREAD_COUNT = 2;
+
+	/**
+	 * Closes the connections of cancelled requests. Closing a TLS socket
+	 * may write to the network, which is not allowed on the main thread, and
+	 * some implementations wait for the reading thread. Its few threads only
+	 * live while there are connections to close, the others wait in line so
+	 * that a fling does not start a thread per cancelled request.
+	 */
+	private static final ThreadPoolExecutor sDisconnector = new ThreadPoolExecutor(DISCONNECTOR_THREAD_COUNT,
+			DISCONNECTOR_THREAD_COUNT, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "UrlFetcher disconnect");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	static {
+		sDisconnector.allowCoreThreadTimeOut(true);
+	}
+
+	private final ByteArrayPool mByteArrayPool;
+	private final int mMaxConnectionsPerHost;
+	// Permits to open a request, by scheme, host and port
+	private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * @param byteArrayPool the pool the download buffers are taken from
+	 */
+	public UrlFetcher(ByteArrayPool byteArrayPool) {
+		this(byteArrayPool, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * @param byteArrayPool the pool the download buffers are taken from
+	 * @param maxConnectionsPerHost the number of requests to the same host
+	 * that can be open at once
+	 */
+	public UrlFetcher(ByteArrayPool byteArrayPool, int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost <= 0) throw new IllegalArgumentException("maxConnectionsPerHost <= 0");
+
+		mByteArrayPool = byteArrayPool;
+		mMaxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	/**
+	 * Called by {@link UrlFetcher#fetchAll(List, Executor, ResponseHandler)}
+	 * for each request, on the thread that fetched it.
+	 */
+	public interface ResponseHandler {
+		/**
+		 * Reads the response, which is closed afterwards. The body should be
+		 * read to the end so that the connection can be reused.
+		 */
+		void onResponse(DownloadRequest request, Response response) throws IOException;
+
+		/**
+		 * Called instead of {@link #onResponse(DownloadRequest, Response)}
+		 * when the request could not be opened or read, or was cancelled.
+		 */
+		void onFailure(DownloadRequest request, IOException e);
+	}
+
+	/**
+	 * Connects to the URL of the request's key, conditionally if the request
+	 * has {@link DownloadRequest#getCachedValidators()}. The body is read
+	 * through a {@link RequestInputStream}, so it reports progress. Cancelling
+	 * the request disconnects it, so that a blocked read fails right away.
+	 * Waits while {@link #DEFAULT_MAX_CONNECTIONS_PER_HOST} or the given
+	 * limit of requests to the same host are open.
+	 * @return the response, which must be closed
+	 * @throws java.net.MalformedURLException if the key is not a URL
+	 * @throws InterruptedIOException if the request is cancelled
+	 */
+	public Response open(final DownloadRequest request) throws IOException {
+		URL url = new URL(request.getKey());
+		Semaphore permits = acquireHostPermit(url, request);
+		final HttpURLConnection connection;
+		try {
+			connection = (HttpURLConnection) url.openConnection();
+		} catch (IOException e) {
+			permits.release();
+			throw e;
+		}
+		request.setOnCancelListener(new DownloadRequest.OnCancelListener() {
+			public void onCancel() {
+				sDisconnector.execute(new Runnable() {
+					public void run() {
+						connection.disconnect();
+					}
+				});
+			}
+		});
+		try {
+			CacheValidators cached = request.getCachedValidators();
+			if (cached != null) {
+				if (cached.getETag() != null) connection.setRequestProperty("If-None-Match", cached.getETag());
+				if (cached.getLastModified() != null) {
+					connection.setRequestProperty("If-Modified-Since", cached.getLastModified());
+				}
+			}
+
+			CacheValidators validators = CacheValidators.fromHeaders(connection.getHeaderField("ETag"),
+					connection.getHeaderField("Last-Modified"), connection.getHeaderField("Cache-Control"),
+					connection.getExpiration(), connection.getDate(), System.currentTimeMillis());
+			if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				checkCancelled(request);
+				return new Response(request, connection, permits, null, 0, validators, true);
+			}
+
+			int contentLength = connection.getContentLength();
+			RequestInputStream in = new RequestInputStream(connection.getInputStream(), contentLength, request);
+			checkCancelled(request);
+			return new Response(request, connection, permits, in, contentLength, validators, false);
+		} catch (IOException e) {
+			request.setOnCancelListener(null);
+			connection.disconnect();
+			permits.release();
+			if (request.isCancelled()) throw cancelled(request, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Fetches the requests one after the other on each of at most as many
+	 * connections as can be open to a host, so that a grid of images from
+	 * the same server only pays for a few connection setups. The calling
+	 * thread fetches too, the other connections are served by the executor.
+	 * Returns once every request has been handled.
+	 * @throws InterruptedIOException if the calling thread is interrupted
+	 * while waiting for the other connections
+	 */
+	public void fetchAll(final List<DownloadRequest> requests, Executor executor, final ResponseHandler handler)
+			throws InterruptedIOException {
+		int connectionCount = Math.min(mMaxConnectionsPerHost, requests.size());
+		if (connectionCount == 0) return;
+
+		final AtomicInteger nextRequest = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(connectionCount - 1);
+		Runnable worker = new Runnable() {
+			public void run() {
+				try {
+					int index;
+					while ((index = nextRequest.getAndIncrement()) < requests.size()) {
+						fetch(requests.get(index), handler);
+					}
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+
+		for (int i = 1; i < connectionCount; i++) {
+			executor.execute(worker);
+		}
+		int index;
+		while ((index = nextRequest.getAndIncrement()) < requests.size()) {
+			fetch(requests.get(index), handler);
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the batch");
+		}
+	}
+
+	private void fetch(DownloadRequest request, ResponseHandler handler) {
+		Response response;
+		try {
+			if (request.isCancelled()) throw new InterruptedIOException("download cancelled: " + request.getKey());
+			response = open(request);
+		} catch (IOException e) {
+			handler.onFailure(request, e);
+			return;
+		}
+
+		try {
+			handler.onResponse(request, response);
+		} catch (IOException e) {
+			handler.onFailure(request, request.isCancelled() ? cancelled(request, e) : e);
+		} finally {
+			try {
+				response.close();
+			} catch (IOException ignored) {
+				// The body was already read
+			}
+		}
+	}
+
+	/**
+	 * Waits until fewer than the maximum number of requests to the host of
+	 * the URL are open.
+	 * @return the permits of the host, one of which must be released once the
+	 * request is closed
+	 */
+	private Semaphore acquireHostPermit(URL url, DownloadRequest request) throws InterruptedIOException {
+		String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+		Semaphore permits = mHostPermits.get(host);
+		if (permits == null) {
+			permits = new Semaphore(mMaxConnectionsPerHost, true);
+			Semaphore existing = mHostPermits.putIfAbsent(host, permits);
+			if (existing != null) permits = existing;
+		}
+
+		try {
+			while (!permits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				checkCancelled(request);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a connection to " + host);
+		}
+		return permits;
+	}
+
+	/**
+	 * @return an {@link InterruptedIOException} for a request that is
+	 * cancelled, and the exception itself if it is one already. Reads aborted
+	 * by closing the connection fail with other exceptions.
+	 */
+	public static InterruptedIOException cancelled(DownloadRequest request, IOException cause) {
+		if (cause instanceof InterruptedIOException) return (InterruptedIOException) cause;
+
+		InterruptedIOException e = new InterruptedIOException("download cancelled: " + request.getKey());
+		e.initCause(cause);
+		return e;
+	}
+
+	private static void checkCancelled(DownloadRequest request) throws InterruptedIOException {
+		// The connection may have been disconnected before it was opened
+		if (request.isCancelled()) throw new InterruptedIOException("download cancelled: " + request.getKey());
+	}
+
+	/**
+	 * Reads the rest of the body into a pooled buffer, sized from the content
+	 * length when it is known.
+	 * @return the body, which must be closed to return the buffer to the pool
+	 */
+	public PoolingByteArrayOutputStream readFully(Response response) throws IOException {
+		int contentLength = response.getContentLength();
+		PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mByteArrayPool,
+				contentLength > 0 ? contentLength : DEFAULT_BUFFER_SIZE);
+		try {
+			bytes.readFrom(response.getInputStream());
+			return bytes;
+		} catch (IOException e) {
+			bytes.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies the rest of the body to the stream, which is not closed.
+	 */
+	public void copyTo(Response response, OutputStream out) throws IOException {
+		InputStream in = response.getInputStream();
+		byte[] buffer = mByteArrayPool.getBuf(COPY_BUFFER_SIZE);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			mByteArrayPool.returnBuf(buffer);
+		}
+	}
+
+	/**
+	 * An open connection and its body.
+	 */
+	public static final class Response implements Closeable {
+		private final DownloadRequest mRequest;
+		private final HttpURLConnection mConnection;
+		private final Semaphore mHostPermits;
+		private final RequestInputStream mInputStream;
+		private final int mContentLength;
+		private final CacheValidators mValidators;
+		private final boolean mNotModified;
+		private boolean mClosed;
+
+		Response(DownloadRequest request, HttpURLConnection connection, Semaphore hostPermits,
+				RequestInputStream in, int contentLength, CacheValidators validators, boolean notModified) {
+			mRequest = request;
+			mConnection = connection;
+			mHostPermits = hostPermits;
+			mInputStream = in;
+			mContentLength = contentLength;
+			mValidators = validators;
+			mNotModified = notModified;
+		}
+
+		/**
+		 * @return the body, or null if {@link #isNotModified()}
+		 */
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		/**
+		 * @return the validators and freshness sent by the server
+		 */
+		public CacheValidators getValidators() {
+			return mValidators;
+		}
+
+		/**
+		 * @return true if the server answered a conditional request with 304
+		 * Not Modified, there is no body then
+		 */
+		public boolean isNotModified() {
+			return mNotModified;
+		}
+
+		/**
+		 * @return the length of the body, or -1 if the server did not send it
+		 */
+		public int getContentLength() {
+			return mContentLength;
+		}
+
+		/**
+		 * Closes the body. The connection goes back to the pool of
+		 * HttpURLConnection if the body was read to the end, otherwise it is
+		 * disconnected.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (mClosed) return;
+			mClosed = true;
+
+			mRequest.setOnCancelListener(null);
+			boolean reusable = !mRequest.isCancelled() && (mInputStream == null || mInputStream.isAtEnd());
+			try {
+				if (mInputStream != null) {
+					mInputStream.close();
+				} else if (reusable) {
+					// The empty body of a 304 response still has to be closed
+					mConnection.getInputStream().close();
+				}
+			} catch (IOException e) {
+				reusable = false;
+				throw e;
+			} finally {
+				if (!reusable) mConnection.disconnect();
+				mHostPermits.release();
+			}
+		}
+	}
+}
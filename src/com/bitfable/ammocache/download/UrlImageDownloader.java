@@ -16,112 +16,344 @@
 
 package com.bitfable.ammocache.download;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
-
-import org.apache.http.util.ByteArrayBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.util.Log;
-import android.widget.ImageView;
 
+import com.bitfable.ammocache.cache.DiskLruCache;
+import com.bitfable.ammocache.io.ByteArrayPool;
 import com.bitfable.ammocache.io.FlushedInputStream;
+import com.bitfable.ammocache.io.PoolingByteArrayOutputStream;
+import com.bitfable.ammocache.io.TeeInputStream;
+import com.bitfable.ammocache.loader.AssetLoader;
+import com.bitfable.ammocache.loader.ContentLoader;
+import com.bitfable.ammocache.loader.FileLoader;
+import com.bitfable.ammocache.loader.ImageLoader;
+import com.bitfable.ammocache.loader.ImageSource;
 
 /**
  * Use this class to download images and load them onto ImageView instances.
- * You can configure the HTTP cache size used by changing
- * {@link #HTTP_CACHE_SIZE}.
+ * Downloaded images are cached on disk by {@link AbstractImageDownloader}
+ * and revalidated with their ETag or Last-Modified date, so the platform
+ * HTTP response cache is not installed: it would store every image twice.
  * 
  * Many of the network optimizations in this code came from an Android Developer
  * Blog article by Jesse Wilson:
  * 
  * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
  * 
+ * Keys with a registered scheme are opened by an {@link ImageLoader} instead,
+ * see {@link #registerLoader(String, ImageLoader)}. Local files, content
+ * providers and assets are supported by default.
  */
 public class UrlImageDownloader extends AbstractImageDownloader {
+	public static String TAG = "UrlImageDownloader";
+
 	/**
-	 * The size of the cache shared by {@link HttpURLConnection}
+	 * Maximum number of bytes kept by the pool of download buffers, shared by
+	 * all instances
 	 */
-	private static final long HTTP_CACHE_SIZE = 5 * 1024 * 1024; // 5 MiB
-	
-	public static String TAG = "UrlImageDownloader";
-	private static final int BYTE_ARRAY_BUFFER_INCREMENTAL_SIZE = 1048;
-	private static final String HTTP_CACHE_FILE_NAME = "image_downloader_http_cache";
+	private static final int BYTE_ARRAY_POOL_SIZE = 1024 * 1024; // 1 MiB
+
+	private static final int DRAIN_BUFFER_SIZE = 4 * 1024;
+
+	private static final ByteArrayPool sByteArrayPool = new ByteArrayPool(BYTE_ARRAY_POOL_SIZE);
+	private static final UrlFetcher sFetcher = new UrlFetcher(sByteArrayPool);
+
+	// Serves the connections of a batch besides the calling thread, see
+	// UrlFetcher.fetchAll()
+	private static final ThreadPoolExecutor sBatchExecutor = new ThreadPoolExecutor(
+			UrlFetcher.DEFAULT_MAX_CONNECTIONS_PER_HOST - 1, UrlFetcher.DEFAULT_MAX_CONNECTIONS_PER_HOST - 1,
+			1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "UrlImageDownloader batch");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+	static {
+		sBatchExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private final ConcurrentHashMap<String, ImageLoader> mLoaders = new ConcurrentHashMap<String, ImageLoader>();
 
 	public UrlImageDownloader(Context context) {
 		super(context);
+		init(context);
+	}
 
+	/**
+	 * @param hardCacheMaxBytes the maximum number of bytes the bitmaps in the
+	 * in-memory LRU cache can use
+	 */
+	public UrlImageDownloader(Context context, int hardCacheMaxBytes) {
+		super(context, hardCacheMaxBytes);
+		init(context);
+	}
+
+	/**
+	 * @param hardCacheMaxBytes the maximum number of bytes the bitmaps in the
+	 * in-memory LRU cache can use
+	 * @param diskCacheMaxBytes the maximum number of bytes used by the disk
+	 * cache, or 0 to disable it. The disk cache is shared by every downloader
+	 * of the process, and the first one to open it sets its budget.
+	 */
+	public UrlImageDownloader(Context context, int hardCacheMaxBytes, long diskCacheMaxBytes) {
+		super(context, hardCacheMaxBytes, diskCacheMaxBytes);
+		init(context);
+	}
+
+	/**
+	 * @param bitmapCache the in-memory cache, which may be shared with other
+	 * downloaders, such as {@link BitmapCache#getShared(Context)}
+	 * @param namespace isolates the images of this downloader from those of
+	 * the other downloaders attached to the cache, or null to share them
+	 * @param diskCacheMaxBytes the maximum number of bytes used by the disk
+	 * cache, or 0 to disable it. The disk cache is shared by every downloader
+	 * of the process, and the first one to open it sets its budget.
+	 */
+	public UrlImageDownloader(Context context, BitmapCache bitmapCache, String namespace, long diskCacheMaxBytes) {
+		super(context, bitmapCache, namespace, diskCacheMaxBytes);
+		init(context);
+	}
+
+	private void init(Context context) {
 		disableConnectionReuseIfNecessary();
 
+		registerLoader(FileLoader.SCHEME, new FileLoader());
 		if (context != null) {
-			enableHttpResponseCache(context);
+			registerLoader(ContentLoader.SCHEME, new ContentLoader(context));
+			registerLoader(AssetLoader.SCHEME, new AssetLoader(context));
 		}
 	}
 
+	/**
+	 * Opens the keys of a scheme with the given loader instead of the network.
+	 * Their images are cached in memory like the others, but not on disk.
+	 * @param scheme such as "content", ignoring case
+	 * @param loader the loader of the scheme, replacing any previous one, or
+	 * null to remove it
+	 */
+	public void registerLoader(String scheme, ImageLoader loader) {
+		scheme = scheme.toLowerCase(Locale.US);
+		if (loader == null) {
+			mLoaders.remove(scheme);
+		} else {
+			mLoaders.put(scheme, loader);
+		}
+	}
+
+	/**
+	 * @return the loader registered for the scheme of the key, or null to
+	 * download it
+	 */
+	private ImageLoader getLoader(String key) {
+		int colon = key.indexOf(':');
+		if (colon <= 0) return null;
+		return mLoaders.get(key.substring(0, colon).toLowerCase(Locale.US));
+	}
+
+	@Override
+	protected boolean shouldCacheOnDisk(String key) {
+		return getLoader(key) == null;
+	}
+
 	@Override
-	protected Bitmap download(String key, WeakReference<ImageView> imageViewRef) {
-    	URL url;
-    	
+	protected Bitmap download(DownloadRequest request) {
+		String key = request.getKey();
+		ImageLoader loader = getLoader(key);
+		if (loader != null) return load(loader, request);
+
+		UrlFetcher.Response response;
 		try {
-			url = new URL(key);
+			response = sFetcher.open(request);
 		} catch (MalformedURLException e) {
 			Log.e(TAG, "url is malformed: " + key, e);
 			return null;
-		}
-		
-    	HttpURLConnection urlConnection;
-		try {
-			urlConnection = (HttpURLConnection) url.openConnection();
+		} catch (InterruptedIOException e) {
+			Log.v(TAG, "download cancelled: " + key);
+			return null;
 		} catch (IOException e) {
 			Log.e(TAG, "error while opening connection", e);
 			return null;
 		}
 		
     	Bitmap bitmap = null;
-    	InputStream httpStream = null;
-    	int contentLength;
-    	int bytesDownloaded = 0;
     	try {
-    		contentLength = urlConnection.getContentLength();
-    		httpStream = new FlushedInputStream(urlConnection.getInputStream());
-    		ByteArrayBuffer baf = new ByteArrayBuffer(BYTE_ARRAY_BUFFER_INCREMENTAL_SIZE);
-    		byte[] buffer = new byte[BYTE_ARRAY_BUFFER_INCREMENTAL_SIZE];
-    		while (!isCancelled(imageViewRef)) {
-    			int incrementalRead = httpStream.read(buffer);
-    			if (incrementalRead == -1) {
-    				break;
-    			}
-    			bytesDownloaded += incrementalRead;
-    			if (contentLength > 0 || (bytesDownloaded > 0 && bytesDownloaded == contentLength)) {
-    				int progress = bytesDownloaded * 100 / contentLength;
-    				publishProgress(progress, imageViewRef);
-    			}
-    			baf.append(buffer, 0, incrementalRead);
+    		request.setResponseValidators(response.getValidators());
+    		if (response.isNotModified()) {
+    			request.setNotModified();
+    		} else if (request.isDiskOnly()) {
+    			copyToDiskCache(key, response);
+    		} else if (request.getTargetWidth() <= 0 && request.getTargetHeight() <= 0
+    				&& getBitmapCache().getEncodedCache() == null) {
+    			// No need to read the bounds first, decode while downloading.
+    			// The bytes are buffered instead when the tier of encoded
+    			// images needs them.
+    			bitmap = decodeStream(request, response.getInputStream());
+    		} else {
+    			bitmap = decodeBuffered(request, response);
     		}
 
-    		if (isCancelled(imageViewRef)) return null;
-    		
-    	    bitmap = BitmapFactory.decodeByteArray(baf.toByteArray(), 0, baf.length());
+    		if (request.isCancelled()) return null;
     	} catch (IOException e) {
+    		// Cancelling closes the connection, which fails the read
+    		if (e instanceof InterruptedIOException || request.isCancelled()) {
+    			Log.v(TAG, "download cancelled: " + key);
+    			return null;
+    		}
 			Log.e(TAG, "error creating InputStream", e);
 		} finally {
-			if (urlConnection != null) urlConnection.disconnect();
-			if (httpStream != null) {
-				try { httpStream.close(); } catch (IOException e) { Log.e(TAG, "IOException while closing http stream", e); }
-			}
+			try { response.close(); } catch (IOException e) { Log.e(TAG, "IOException while closing http stream", e); }
 		}
 
     	return bitmap;
     }
 
+	/**
+	 * Fetches the batch with {@link UrlFetcher#fetchAll(List, Executor, UrlFetcher.ResponseHandler)},
+	 * so that the images of one host share a few kept-alive connections.
+	 */
+	@Override
+	protected void downloadAll(List<DownloadRequest> requests) throws InterruptedIOException {
+		sFetcher.fetchAll(requests, sBatchExecutor, new UrlFetcher.ResponseHandler() {
+			public void onResponse(DownloadRequest request, UrlFetcher.Response response) throws IOException {
+				request.setResponseValidators(response.getValidators());
+				if (response.isNotModified()) {
+					request.setNotModified();
+				} else {
+					copyToDiskCache(request.getKey(), response);
+				}
+			}
+
+			public void onFailure(DownloadRequest request, IOException e) {
+				Log.e(TAG, "error while prefetching " + request.getKey(), e);
+			}
+		});
+	}
+
+	/**
+	 * Opens the image with the loader of its scheme and decodes it in place
+	 */
+	private Bitmap load(ImageLoader loader, DownloadRequest request) {
+		String key = request.getKey();
+		ImageSource source;
+		try {
+			source = loader.open(request);
+		} catch (IOException e) {
+			Log.e(TAG, "could not open " + key, e);
+			return null;
+		}
+
+		try {
+			if (request.isCancelled()) return null;
+
+			long decodeStart = System.nanoTime();
+			Bitmap bitmap = decodeBitmap(request, source);
+			request.setDecodeTime(System.nanoTime() - decodeStart);
+			return bitmap;
+		} catch (IOException e) {
+			Log.e(TAG, "error reading " + key, e);
+			return null;
+		} finally {
+			try { source.close(); } catch (IOException e) { Log.e(TAG, "IOException while closing " + key, e); }
+		}
+	}
+
+	/**
+	 * Decodes the image while it is being downloaded, copying the bytes to the
+	 * disk cache as they are read.
+	 */
+	private Bitmap decodeStream(DownloadRequest request, InputStream httpStream) throws IOException {
+		DiskLruCache.Editor editor = editDiskCache(request.getKey());
+		if (editor == null) {
+			return decodeBitmap(request, new FlushedInputStream(httpStream));
+		}
+
+		boolean committed = false;
+		OutputStream cacheStream = null;
+		byte[] drainBuffer = sByteArrayPool.getBuf(DRAIN_BUFFER_SIZE);
+		try {
+			cacheStream = editor.newOutputStream(0);
+			TeeInputStream teeStream = new TeeInputStream(httpStream, cacheStream);
+			Bitmap bitmap = decodeBitmap(request, new FlushedInputStream(teeStream));
+			if (bitmap != null) {
+				// The decoder may stop before the end of the stream
+				teeStream.drain(drainBuffer);
+				cacheStream.close();
+				editor.commit();
+				committed = true;
+			}
+			return bitmap;
+		} finally {
+			sByteArrayPool.returnBuf(drainBuffer);
+			if (!committed) {
+				if (cacheStream != null) cacheStream.close();
+				editor.abort();
+			}
+		}
+	}
+
+	/**
+	 * Copies the encoded image to the disk cache without decoding it, for
+	 * prefetches.
+	 */
+	private void copyToDiskCache(String key, UrlFetcher.Response response) throws IOException {
+		DiskLruCache.Editor editor = editDiskCache(key);
+		// Disabled, or another thread is already downloading the key
+		if (editor == null) return;
+
+		boolean committed = false;
+		OutputStream cacheStream = null;
+		try {
+			cacheStream = editor.newOutputStream(0);
+			sFetcher.copyTo(response, cacheStream);
+			cacheStream.close();
+			editor.commit();
+			committed = true;
+		} finally {
+			if (!committed) {
+				if (cacheStream != null) cacheStream.close();
+				editor.abort();
+			}
+		}
+	}
+
+	/**
+	 * Downloads the whole image into a pooled buffer, see
+	 * {@link UrlFetcher#readFully(UrlFetcher.Response)}, then decodes it at the
+	 * target size and stores the same buffer in the disk cache.
+	 */
+	private Bitmap decodeBuffered(DownloadRequest request, UrlFetcher.Response response) throws IOException {
+		PoolingByteArrayOutputStream bytes = sFetcher.readFully(response);
+		try {
+			if (request.isCancelled()) return null;
+
+			long decodeStart = System.nanoTime();
+			Bitmap bitmap = decodeBitmap(request, bytes.getBuffer(), 0, bytes.size());
+			request.setDecodeTime(System.nanoTime() - decodeStart);
+			if (bitmap != null) addToDiskCache(request.getKey(), bytes.getBuffer(), 0, bytes.size());
+			return bitmap;
+		} finally {
+			bytes.close();
+		}
+	}
 
 	/**
 	 * Prior to Froyo, HttpURLConnection had some frustrating bugs. In
@@ -134,28 +366,4 @@ public class UrlImageDownloader extends AbstractImageDownloader {
 	        System.setProperty("http.keepAlive", "false");
 	    }
 	}
-	
-	/**
-	 * Use reflection to enable HTTP response caching on devices that support
-	 * it. This sample code will turn on the response cache on Ice Cream
-	 * Sandwich without affecting earlier releases.
-	 */
-	private void enableHttpResponseCache(Context context) {
-		File cacheDir = context.getCacheDir();
-		if (cacheDir == null) {
-			Log.w(TAG, "cache directory could not be found");
-			return;
-		}
-		
-	    try {
-	        long httpCacheSize = HTTP_CACHE_SIZE;
-	        File httpCacheDir = new File(cacheDir, HTTP_CACHE_FILE_NAME);
-	        Class.forName("android.net.http.HttpResponseCache")
-	            .getMethod("install", File.class, long.class)
-	            .invoke(null, httpCacheDir, httpCacheSize);
-	    } catch (Exception httpResponseCacheNotAvailable) {
-	    	Log.v(TAG, "HttpResponseCache is not available");
-	    }
-	}
-	
 }
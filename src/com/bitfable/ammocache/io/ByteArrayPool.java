@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Recycles byte arrays so that downloading an image does not have to allocate
+ * a new buffer for its payload every time. Buffers are handed out by size and
+ * the least recently returned ones are dropped once the pool holds more than
+ * its size limit.
+ * 
+ * The pooling strategy is based on ByteArrayPool from Volley in the Android
+ * Open Source Project.
+ */
+public class ByteArrayPool {
+	private static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] lhs, byte[] rhs) {
+			return lhs.length - rhs.length;
+		}
+	};
+
+	private final List<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
+	private final List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+	private final int mSizeLimit;
+	private int mCurrentSize = 0;
+
+	/**
+	 * @param sizeLimit the maximum number of bytes held by the pool
+	 */
+	public ByteArrayPool(int sizeLimit) {
+		mSizeLimit = sizeLimit;
+	}
+
+	/**
+	 * @return a buffer from the pool that is at least len bytes long, or a new
+	 * buffer of exactly len bytes if none is available
+	 */
+	public synchronized byte[] getBuf(int len) {
+		for (int i = 0; i < mBuffersBySize.size(); i++) {
+			byte[] buf = mBuffersBySize.get(i);
+			if (buf.length >= len) {
+				mCurrentSize -= buf.length;
+				mBuffersBySize.remove(i);
+				mBuffersByLastUse.remove(buf);
+				return buf;
+			}
+		}
+		return new byte[len];
+	}
+
+	/**
+	 * Returns a buffer to the pool, it must not be used by the caller anymore.
+	 */
+	public synchronized void returnBuf(byte[] buf) {
+		if (buf == null || buf.length > mSizeLimit) return;
+
+		mBuffersByLastUse.add(buf);
+		int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
+		if (pos < 0) pos = -pos - 1;
+		mBuffersBySize.add(pos, buf);
+		mCurrentSize += buf.length;
+		trim(mSizeLimit);
+	}
+
+	/**
+	 * Drops pooled buffers until the pool holds at most maxSize bytes.
+	 */
+	public synchronized void trim(int maxSize) {
+		while (mCurrentSize > maxSize) {
+			byte[] buf = mBuffersByLastUse.remove(0);
+			mBuffersBySize.remove(buf);
+			mCurrentSize -= buf.length;
+		}
+	}
+
+	/**
+	 * @return the number of bytes held by the pool
+	 */
+	public synchronized int getCurrentSize() {
+		return mCurrentSize;
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a ByteBuffer, so that a direct buffer can be
+ * decoded without copying it into an array first. Reading moves the position
+ * of the buffer, pass a duplicate to keep it.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+	private int mMark;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		mBuffer = buffer;
+		mMark = buffer.position();
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining()) return -1;
+		return mBuffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) {
+		if (count == 0) return 0;
+		if (!mBuffer.hasRemaining()) return -1;
+
+		int read = Math.min(count, mBuffer.remaining());
+		mBuffer.get(buffer, offset, read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) return 0;
+
+		int skipped = (int) Math.min(n, mBuffer.remaining());
+		mBuffer.position(mBuffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		mMark = mBuffer.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.position(mMark);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A ByteArrayOutputStream that takes its buffers from a {@link ByteArrayPool}
+ * and gives access to its buffer so that the content can be used without the
+ * copy made by {@link #toByteArray()}. The buffer goes back to the pool when
+ * the stream is closed.
+ */
+public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+	private final ByteArrayPool mPool;
+
+	/**
+	 * @param size the initial size of the buffer, the exact length of the
+	 * content if it is known
+	 */
+	public PoolingByteArrayOutputStream(ByteArrayPool pool, int size) {
+		mPool = pool;
+		buf = mPool.getBuf(Math.max(size, 1));
+	}
+
+	/**
+	 * Reads the stream until its end directly into the buffer, growing it only
+	 * when the content turns out to be longer than the buffer.
+	 */
+	public void readFrom(InputStream in) throws IOException {
+		while (true) {
+			if (count == buf.length) {
+				// Don't grow a buffer that was sized exactly for the content
+				int oneByte = in.read();
+				if (oneByte == -1) return;
+				expand(1);
+				buf[count++] = (byte) oneByte;
+			}
+
+			int read = in.read(buf, count, buf.length - count);
+			if (read == -1) return;
+			count += read;
+		}
+	}
+
+	/**
+	 * @return the internal buffer, only the first {@link #size()} bytes are
+	 * valid. It must not be used after the stream is closed.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mPool.returnBuf(buf);
+		buf = null;
+		super.close();
+	}
+
+	private void expand(int i) {
+		if (count + i <= buf.length) return;
+
+		byte[] newBuf = mPool.getBuf((count + i) * 2);
+		System.arraycopy(buf, 0, newBuf, 0, count);
+		mPool.returnBuf(buf);
+		buf = newBuf;
+	}
+
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int len) {
+		expand(len);
+		super.write(buffer, offset, len);
+	}
+
+	@Override
+	public synchronized void write(int oneByte) {
+		expand(1);
+		super.write(oneByte);
+	}
+}
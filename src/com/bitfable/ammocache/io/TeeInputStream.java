@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies every byte read from the stream to an OutputStream, so that a
+ * download can be decoded and cached at the same time. Skipped bytes are read
+ * and copied as well. Mark and reset are not supported, as they would copy
+ * bytes twice.
+ */
+public class TeeInputStream extends FilterInputStream {
+	private final OutputStream mOut;
+
+	public TeeInputStream(InputStream in, OutputStream out) {
+		super(in);
+		mOut = out;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int oneByte = in.read();
+		if (oneByte != -1) mOut.write(oneByte);
+		return oneByte;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int read = in.read(buffer, offset, count);
+		if (read > 0) mOut.write(buffer, offset, read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(n, 4096)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+			if (read == -1) break;
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Reads and copies the rest of the stream.
+	 */
+	public void drain(byte[] buffer) throws IOException {
+		while (read(buffer, 0, buffer.length) != -1) { }
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) { }
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.loader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.net.Uri;
+
+import com.bitfable.ammocache.download.DownloadRequest;
+
+/**
+ * Loads images bundled in the assets of the application, with keys such as
+ * asset:///images/placeholder.png.
+ */
+public class AssetLoader implements ImageLoader {
+	public static final String SCHEME = "asset";
+
+	private final AssetManager mAssets;
+
+	public AssetLoader(Context context) {
+		mAssets = context.getAssets();
+	}
+
+	@Override
+	public ImageSource open(DownloadRequest request) throws IOException {
+		String path = Uri.parse(request.getKey()).getPath();
+		if (path == null) throw new IOException("no path in " + request.getKey());
+		if (path.startsWith("/")) path = path.substring(1);
+
+		try {
+			// Mapped straight from the APK when the asset is not compressed
+			return ImageSource.fromAssetFileDescriptor(mAssets.openFd(path));
+		} catch (FileNotFoundException compressed) {
+			// openFd() also fails for compressed assets, which can only be
+			// streamed. A missing asset fails again here.
+			return ImageSource.fromStream(mAssets.open(path, AssetManager.ACCESS_STREAMING));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.loader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import com.bitfable.ammocache.download.DownloadRequest;
+
+/**
+ * Loads content:// URIs from content providers, such as the media store.
+ */
+public class ContentLoader implements ImageLoader {
+	public static final String SCHEME = ContentResolver.SCHEME_CONTENT;
+
+	private final ContentResolver mContentResolver;
+
+	public ContentLoader(Context context) {
+		mContentResolver = context.getContentResolver();
+	}
+
+	@Override
+	public ImageSource open(DownloadRequest request) throws IOException {
+		Uri uri = Uri.parse(request.getKey());
+		AssetFileDescriptor afd = mContentResolver.openAssetFileDescriptor(uri, "r");
+		if (afd == null) throw new FileNotFoundException("no file for " + uri);
+		return ImageSource.fromAssetFileDescriptor(afd);
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.loader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.net.Uri;
+
+import com.bitfable.ammocache.download.DownloadRequest;
+
+/**
+ * Loads file:// URIs, such as images from the camera or a download
+ * directory, decoding them from their descriptor.
+ */
+public class FileLoader implements ImageLoader {
+	public static final String SCHEME = "file";
+
+	@Override
+	public ImageSource open(DownloadRequest request) throws IOException {
+		String path = Uri.parse(request.getKey()).getPath();
+		if (path == null) throw new IOException("no path in " + request.getKey());
+		return ImageSource.fromFile(new FileInputStream(path));
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.loader;
+
+import java.io.IOException;
+
+import com.bitfable.ammocache.download.DownloadRequest;
+
+/**
+ * Opens the images of one URI scheme, such as {@link FileLoader} for
+ * file:// keys. Loaders are registered with
+ * UrlImageDownloader.registerLoader(String, ImageLoader) and share its
+ * in-memory cache, downsampling and scheduling, but not its disk cache since
+ * their images are already stored locally.
+ */
+public interface ImageLoader {
+	/**
+	 * Called on a background thread.
+	 * @param request the key of the request is the URI to open
+	 * @return the encoded image, closed by the caller once decoded
+	 * @throws IOException if the image could not be opened
+	 */
+	ImageSource open(DownloadRequest request) throws IOException;
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.loader;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.res.AssetFileDescriptor;
+
+/**
+ * The encoded bytes of an image opened by an {@link ImageLoader}, in the form
+ * that can be decoded with the fewest copies: a seekable file descriptor, a
+ * buffer, usually memory-mapped, or a stream when nothing better is
+ * available. Exactly one of them is set. Must be closed once decoded.
+ */
+public final class ImageSource implements Closeable {
+	private final FileDescriptor mFileDescriptor;
+	private final ByteBuffer mBuffer;
+	private final InputStream mStream;
+	private final Closeable mOwner;
+
+	private ImageSource(FileDescriptor fd, ByteBuffer buffer, InputStream stream, Closeable owner) {
+		mFileDescriptor = fd;
+		mBuffer = buffer;
+		mStream = stream;
+		mOwner = owner;
+	}
+
+	/**
+	 * @param in a stream over a whole file, which is closed with the source.
+	 * The file is decoded from its descriptor, without being read into
+	 * memory first.
+	 */
+	public static ImageSource fromFile(FileInputStream in) throws IOException {
+		return new ImageSource(in.getFD(), null, null, in);
+	}
+
+	/**
+	 * @param buffer the encoded image, from its position to its limit
+	 */
+	public static ImageSource fromBuffer(ByteBuffer buffer) {
+		return new ImageSource(null, buffer, null, null);
+	}
+
+	/**
+	 * @param in the encoded image, which is closed with the source
+	 */
+	public static ImageSource fromStream(InputStream in) {
+		return new ImageSource(null, null, in, in);
+	}
+
+	/**
+	 * Opens a descriptor from a content provider or the assets. A region of a
+	 * larger file, such as an uncompressed asset inside the APK, is
+	 * memory-mapped since the decoder can't be told where it starts, while a
+	 * whole file is decoded from its descriptor and a pipe is read as a
+	 * stream. The descriptor is closed with the source, or right away once
+	 * mapped.
+	 */
+	public static ImageSource fromAssetFileDescriptor(AssetFileDescriptor afd) throws IOException {
+		FileInputStream in;
+		try {
+			in = afd.createInputStream();
+		} catch (IOException e) {
+			afd.close();
+			throw e;
+		}
+
+		// Pipes have no size and can't be mapped or read twice
+		if (afd.getParcelFileDescriptor().getStatSize() < 0) return fromStream(in);
+		if (afd.getDeclaredLength() == AssetFileDescriptor.UNKNOWN_LENGTH && afd.getStartOffset() == 0) {
+			return fromFile(in);
+		}
+
+		try {
+			// The mapping stays valid once the descriptor is closed
+			return fromBuffer(in.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(),
+					afd.getLength()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the descriptor of a whole file positioned at its start, or null
+	 */
+	public FileDescriptor getFileDescriptor() {
+		return mFileDescriptor;
+	}
+
+	/**
+	 * @return the encoded bytes, or null
+	 */
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * @return a stream that can only be read once, or null
+	 */
+	public InputStream getInputStream() {
+		return mStream;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mOwner != null) mOwner.close();
+	}
+}
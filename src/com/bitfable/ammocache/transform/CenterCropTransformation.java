@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.transform;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+
+/**
+ * Scales the image so that it covers the given dimensions, keeping its aspect
+ * ratio, and crops what overflows equally on both sides.
+ */
+public class CenterCropTransformation implements Transformation {
+	private final int mWidth;
+	private final int mHeight;
+
+	/**
+	 * @param width the width of the cropped image, in pixels
+	 * @param height the height of the cropped image, in pixels
+	 */
+	public CenterCropTransformation(int width, int height) {
+		if (width <= 0 || height <= 0) throw new IllegalArgumentException("size <= 0");
+
+		mWidth = width;
+		mHeight = height;
+	}
+
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		if (width == mWidth && height == mHeight) return source;
+
+		// The part of the source with the aspect ratio of the result
+		Rect crop;
+		if ((long) width * mHeight > (long) height * mWidth) {
+			int cropWidth = Math.max(1, (int) ((long) height * mWidth / mHeight));
+			int left = (width - cropWidth) / 2;
+			crop = new Rect(left, 0, left + cropWidth, height);
+		} else {
+			int cropHeight = Math.max(1, (int) ((long) width * mHeight / mWidth));
+			int top = (height - cropHeight) / 2;
+			crop = new Rect(0, top, width, top + cropHeight);
+		}
+
+		Bitmap bitmap = Transformations.createBitmap(pool, mWidth, mHeight, source.getConfig());
+		new Canvas(bitmap).drawBitmap(source, crop, new Rect(0, 0, mWidth, mHeight),
+				new Paint(Paint.FILTER_BITMAP_FLAG));
+		return bitmap;
+	}
+
+	@Override
+	public String getKey() {
+		return "centerCrop(" + mWidth + "x" + mHeight + ")";
+	}
+}
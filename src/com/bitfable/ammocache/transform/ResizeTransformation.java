@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.transform;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+
+/**
+ * Scales the image so that it fits inside the given dimensions, keeping its
+ * aspect ratio. Images that already fit are left alone.
+ */
+public class ResizeTransformation implements Transformation {
+	private final int mMaxWidth;
+	private final int mMaxHeight;
+
+	/**
+	 * @param maxWidth the maximum width of the image, in pixels
+	 * @param maxHeight the maximum height of the image, in pixels
+	 */
+	public ResizeTransformation(int maxWidth, int maxHeight) {
+		if (maxWidth <= 0 || maxHeight <= 0) throw new IllegalArgumentException("size <= 0");
+
+		mMaxWidth = maxWidth;
+		mMaxHeight = maxHeight;
+	}
+
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		if (width <= mMaxWidth && height <= mMaxHeight) return source;
+
+		float scale = Math.min(mMaxWidth / (float) width, mMaxHeight / (float) height);
+		int scaledWidth = Math.max(1, Math.round(width * scale));
+		int scaledHeight = Math.max(1, Math.round(height * scale));
+
+		Bitmap bitmap = Transformations.createBitmap(pool, scaledWidth, scaledHeight, source.getConfig());
+		new Canvas(bitmap).drawBitmap(source, null, new Rect(0, 0, scaledWidth, scaledHeight),
+				new Paint(Paint.FILTER_BITMAP_FLAG));
+		return bitmap;
+	}
+
+	@Override
+	public String getKey() {
+		return "resize(" + mMaxWidth + "x" + mMaxHeight + ")";
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.transform;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+
+/**
+ * Rounds the corners of the image, which become transparent. Put it after
+ * {@link CenterCropTransformation} or {@link ResizeTransformation} so that
+ * the radius is in the pixels of the displayed image.
+ */
+public class RoundedCornersTransformation implements TranslucentTransformation {
+	private final float mRadius;
+
+	/**
+	 * @param radius the radius of the corners, in pixels
+	 */
+	public RoundedCornersTransformation(float radius) {
+		if (radius < 0) throw new IllegalArgumentException("radius < 0");
+
+		mRadius = radius;
+	}
+
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		if (mRadius == 0) return source;
+
+		int width = source.getWidth();
+		int height = source.getHeight();
+		Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+
+		// The corners need an alpha channel, even if the source has none
+		Bitmap bitmap = Transformations.createBitmap(pool, width, height, Bitmap.Config.ARGB_8888);
+		new Canvas(bitmap).drawRoundRect(new RectF(0, 0, width, height), mRadius, mRadius, paint);
+		return bitmap;
+	}
+
+	@Override
+	public String getKey() {
+		return "roundedCorners(" + mRadius + ")";
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.transform;
+
+import android.graphics.Bitmap;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+
+/**
+ * Changes a decoded image before it is cached and displayed, such as
+ * {@link CenterCropTransformation}. Transformations are given to a download
+ * through DownloadOptions.transformations and run on the background thread
+ * of the download, and only their result is kept in the in-memory cache.
+ */
+public interface Transformation {
+	/**
+	 * @param source the decoded image, or the result of the previous
+	 * transformation. It is put back into the pool by the caller if a new
+	 * bitmap is returned, so it must not be recycled.
+	 * @param pool bitmaps that can be drawn into instead of allocating a new
+	 * one, see {@link Transformations#createBitmap(BitmapPool, int, int, Bitmap.Config)}
+	 * @return the transformed image, or the source itself if it did not need
+	 * to change. Must not be null. It should have the config of the source,
+	 * which is part of the cache key, unless the transformation is a
+	 * {@link TranslucentTransformation}.
+	 */
+	Bitmap transform(Bitmap source, BitmapPool pool);
+
+	/**
+	 * @return a string identifying the transformation and its parameters,
+	 * which is added to the cache key of the image
+	 */
+	String getKey();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.transform;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.bitfable.ammocache.cache.BitmapPool;
+
+/**
+ * Helpers for {@link Transformation} implementations.
+ */
+public final class Transformations {
+	private Transformations() { }
+
+	/**
+	 * @return a transparent ARGB_8888 bitmap of the given dimensions, taken
+	 * from the pool when it has one
+	 */
+	public static Bitmap createBitmap(BitmapPool pool, int width, int height) {
+		return createBitmap(pool, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * @param config the config of the bitmap, usually the one of the source
+	 * so that an image decoded as RGB_565 stays RGB_565, or null for
+	 * ARGB_8888
+	 * @return a cleared bitmap of the given dimensions and config, taken from
+	 * the pool when it has one
+	 */
+	public static Bitmap createBitmap(BitmapPool pool, int width, int height, Bitmap.Config config) {
+		if (config == null) config = Bitmap.Config.ARGB_8888;
+		Bitmap bitmap = pool == null ? null : pool.get(width, height, config);
+		if (bitmap == null) return Bitmap.createBitmap(width, height, config);
+
+		bitmap.eraseColor(Color.TRANSPARENT);
+		return bitmap;
+	}
+
+	/**
+	 * @return the keys of the transformations, to be appended to the cache
+	 * key of the image, or an empty string if there are none
+	 */
+	public static String getKey(List<Transformation> transformations) {
+		if (transformations == null || transformations.isEmpty()) return "";
+
+		StringBuilder key = new StringBuilder();
+		for (Transformation transformation : transformations) {
+			key.append('|').append(transformation.getKey());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return true if one of the transformations is a
+	 * {@link TranslucentTransformation}, so that their result is ARGB_8888
+	 */
+	public static boolean isTranslucent(List<Transformation> transformations) {
+		if (transformations == null) return false;
+
+		for (Transformation transformation : transformations) {
+			if (transformation instanceof TranslucentTransformation) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the transformations in order. Every intermediate bitmap, and the
+	 * source once it has been replaced, is put into the pool.
+	 * @return the transformed image
+	 * @throws RuntimeException thrown by a transformation, after the bitmap
+	 * it was given has been put into the pool
+	 */
+	public static Bitmap apply(List<Transformation> transformations, Bitmap source, BitmapPool pool) {
+		Bitmap bitmap = source;
+		try {
+			for (Transformation transformation : transformations) {
+				Bitmap transformed = transformation.transform(bitmap, pool);
+				if (transformed == null) {
+					throw new NullPointerException(transformation.getKey() + " returned null");
+				}
+				if (transformed != bitmap && pool != null) pool.put(bitmap);
+				bitmap = transformed;
+			}
+		} catch (RuntimeException e) {
+			// The caller never sees the bitmap the chain stopped at
+			if (pool != null) pool.put(bitmap);
+			throw e;
+		}
+		return bitmap;
+	}
+}
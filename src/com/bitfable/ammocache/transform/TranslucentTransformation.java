@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.transform;
+
+/**
+ * A {@link Transformation} whose result has transparent pixels, such as
+ * {@link RoundedCornersTransformation}. Its result is always ARGB_8888,
+ * whatever config the image was decoded with, and is cached under the key
+ * of ARGB_8888 images.
+ */
+public interface TranslucentTransformation extends Transformation {
+}
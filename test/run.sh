@@ -0,0 +1,25 @@
+#!/bin/sh
+#
+# Compiles and runs the unit tests on a plain JVM. Only the classes of src
+# that don't depend on Android are compiled, through -sourcepath.
+#
+# Usage: test/run.sh
+#
+# Every class whose name ends in Test is run, and fails the script by
+# throwing from its main method.
+
+set -e
+
+TEST_DIR=$(cd "$(dirname "$0")" && pwd)
+OUT_DIR="$TEST_DIR/out"
+
+rm -rf "$OUT_DIR"
+mkdir -p "$OUT_DIR"
+javac -d "$OUT_DIR" -sourcepath "$TEST_DIR/../src:$TEST_DIR/src" \
+	$(find "$TEST_DIR/src" -name '*.java')
+
+for FILE in $(cd "$TEST_DIR/src" && find . -name '*Test.java'); do
+	CLASS=$(echo "$FILE" | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g')
+	java -ea -cp "$OUT_DIR" "$CLASS"
+	echo "$CLASS passed"
+done
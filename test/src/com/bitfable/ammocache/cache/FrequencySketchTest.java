@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+/**
+ * Tests the counting, saturation and halving of {@link FrequencySketch}.
+ */
+public class FrequencySketchTest {
+	public static void main(String[] args) {
+		testUnseenKey();
+		testCountsIncrements();
+		testSaturatesAtFifteen();
+		testHalvesAfterSampleSize();
+	}
+
+	private static void testUnseenKey() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		assertEquals(0, sketch.frequency("a"));
+	}
+
+	private static void testCountsIncrements() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 5; i++) {
+			sketch.increment("a");
+		}
+		sketch.increment("b");
+
+		assertEquals(5, sketch.frequency("a"));
+		assertEquals(1, sketch.frequency("b"));
+	}
+
+	private static void testSaturatesAtFifteen() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment("a");
+		}
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	private static void testHalvesAfterSampleSize() {
+		// Counters are halved after ten increments per entry of capacity
+		FrequencySketch sketch = new FrequencySketch(8);
+		for (int i = 0; i < 15; i++) {
+			sketch.increment("a");
+		}
+		assertEquals(15, sketch.frequency("a"));
+
+		int increments = 0;
+		while (sketch.frequency("a") == 15) {
+			sketch.increment(Integer.valueOf(increments++));
+			if (increments > 1000) throw new AssertionError("counters never halved");
+		}
+		// Increments of saturated counters don't count towards the sample
+		assertTrue(increments >= 80 - 15);
+		// The counters of a were saturated, so nothing was added before
+		// they were halved
+		assertEquals(7, sketch.frequency("a"));
+	}
+
+	private static void assertEquals(int expected, int actual) {
+		if (expected != actual) {
+			throw new AssertionError("expected " + expected + " but was " + actual);
+		}
+	}
+
+	private static void assertTrue(boolean condition) {
+		if (!condition) throw new AssertionError();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the size-bounded LRU eviction of {@link SizedLruCache} and its
+ * admission policy.
+ */
+public class SizedLruCacheTest {
+	// Fills the main list of a cache of 10 next to its window of 2
+	private static final int HOT_KEY_COUNT = 8;
+	private static final int SCAN_LENGTH = 100;
+
+	public static void main(String[] args) {
+		testEvictsLeastRecentlyUsed();
+		testEvictsBySize();
+		testOversizedEntryIsEvicted();
+		testTrimToSize();
+		testReplaceKeepsSize();
+		testAdmissionKeepsFrequentEntries();
+		testLruLosesFrequentEntriesToScan();
+	}
+
+	private static void testEvictsLeastRecentlyUsed() {
+		RecordingCache cache = new RecordingCache(3, false);
+		cache.put("a", "1");
+		cache.put("b", "1");
+		cache.put("c", "1");
+		// The hit makes b the least recently used entry
+		cache.get("a");
+		cache.put("d", "1");
+
+		assertEquals("[b]", cache.mEvicted.toString());
+		assertEquals(null, cache.get("b"));
+		assertEquals("1", cache.get("a"));
+		assertEquals(3, cache.size());
+	}
+
+	private static void testEvictsBySize() {
+		RecordingCache cache = new RecordingCache(10, false);
+		cache.put("a", "1234");
+		cache.put("b", "1234");
+		assertEquals(8, cache.size());
+		// Two entries have to go to make room for this one
+		cache.put("c", "12345678");
+
+		assertEquals("[a, b]", cache.mEvicted.toString());
+		assertEquals(8, cache.size());
+		assertEquals(1, cache.count());
+	}
+
+	private static void testOversizedEntryIsEvicted() {
+		RecordingCache cache = new RecordingCache(4, false);
+		cache.put("a", "12");
+		cache.put("b", "12345");
+
+		assertEquals("[a, b]", cache.mEvicted.toString());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.count());
+	}
+
+	private static void testTrimToSize() {
+		RecordingCache cache = new RecordingCache(10, false);
+		cache.put("a", "123");
+		cache.put("b", "123");
+		cache.put("c", "123");
+		cache.trimToSize(4);
+
+		assertEquals("[a, b]", cache.mEvicted.toString());
+		assertEquals(3, cache.size());
+		assertEquals(10, cache.maxSize());
+	}
+
+	private static void testReplaceKeepsSize() {
+		RecordingCache cache = new RecordingCache(10, false);
+		cache.put("a", "123");
+		assertEquals("123", cache.put("a", "12345"));
+
+		assertEquals(5, cache.size());
+		assertEquals(1, cache.count());
+		// A replaced value is not evicted
+		assertEquals("[]", cache.mEvicted.toString());
+	}
+
+	private static void testAdmissionKeepsFrequentEntries() {
+		RecordingCache cache = new RecordingCache(10, true);
+		fillWithHotKeys(cache);
+		scan(cache);
+
+		for (int i = 0; i < HOT_KEY_COUNT; i++) {
+			assertEquals("1", cache.get("hot" + i));
+		}
+		// Only the last keys of the scan are left, in the window
+		assertEquals(10, cache.count());
+		assertEquals((long) (SCAN_LENGTH - 2), cache.getRejectionCount());
+	}
+
+	private static void testLruLosesFrequentEntriesToScan() {
+		RecordingCache cache = new RecordingCache(10, false);
+		fillWithHotKeys(cache);
+		scan(cache);
+
+		for (int i = 0; i < HOT_KEY_COUNT; i++) {
+			assertEquals(null, cache.get("hot" + i));
+		}
+		assertEquals(0L, cache.getRejectionCount());
+	}
+
+	private static void fillWithHotKeys(RecordingCache cache) {
+		for (int i = 0; i < HOT_KEY_COUNT; i++) {
+			cache.put("hot" + i, "1");
+		}
+		for (int hits = 0; hits < 3; hits++) {
+			for (int i = 0; i < HOT_KEY_COUNT; i++) {
+				cache.get("hot" + i);
+			}
+			// Drains the hits into the sketch
+			cache.trimToSize(cache.maxSize());
+		}
+	}
+
+	private static void scan(RecordingCache cache) {
+		for (int i = 0; i < SCAN_LENGTH; i++) {
+			cache.put("scan" + i, "1");
+		}
+	}
+
+	private static void assertEquals(Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError("expected " + expected + " but was " + actual);
+		}
+	}
+
+	/**
+	 * Sizes its values by their length and records the evicted keys
+	 */
+	private static class RecordingCache extends SizedLruCache<String, String> {
+		final List<String> mEvicted = new ArrayList<String>();
+
+		RecordingCache(int maxSize, boolean admission) {
+			super(maxSize, admission);
+		}
+
+		@Override
+		protected int sizeOf(String key, String value) {
+			return value.length();
+		}
+
+		@Override
+		protected void entryEvicted(String key, String value) {
+			mEvicted.add(key);
+		}
+	}
+}
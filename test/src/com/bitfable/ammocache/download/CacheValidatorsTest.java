@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+/**
+ * Tests how {@link CacheValidators} work out when a cached image expires.
+ */
+public class CacheValidatorsTest {
+	private static final long NOW = 1000000000000L;
+
+	public static void main(String[] args) {
+		testMaxAge();
+		testNoCacheExpiresRightAway();
+		testCacheControlOverridesExpires();
+		testExpiresRelativeToDate();
+		testExpiresWithoutDate();
+		testUnknownExpiryNeverExpires();
+		testMergeKeepsCachedValidators();
+		testEncodeRoundTrip();
+	}
+
+	private static void testMaxAge() {
+		CacheValidators validators = CacheValidators.fromHeaders("\"a\"", null,
+				"public, max-age=60", 0, 0, NOW);
+		assertEquals(NOW + 60000, validators.getExpiresAt());
+		assertFalse(validators.isExpired(NOW + 59999));
+		assertTrue(validators.isExpired(NOW + 60000));
+		assertTrue(validators.canRevalidate());
+	}
+
+	private static void testNoCacheExpiresRightAway() {
+		assertTrue(CacheValidators.fromHeaders(null, null, "no-cache", 0, 0, NOW).isExpired(NOW));
+		assertTrue(CacheValidators.fromHeaders(null, null, "No-Store", 0, 0, NOW).isExpired(NOW));
+	}
+
+	private static void testCacheControlOverridesExpires() {
+		CacheValidators validators = CacheValidators.fromHeaders(null, null, "max-age=10",
+				NOW + 3600000, NOW, NOW);
+		assertEquals(NOW + 10000, validators.getExpiresAt());
+	}
+
+	private static void testExpiresRelativeToDate() {
+		// The server's clock is an hour behind
+		long date = NOW - 3600000;
+		CacheValidators validators = CacheValidators.fromHeaders(null, null, null,
+				date + 60000, date, NOW);
+		assertEquals(NOW + 60000, validators.getExpiresAt());
+
+		// Already expired by the server's clock
+		validators = CacheValidators.fromHeaders(null, null, null, date - 1, date, NOW);
+		assertTrue(validators.isExpired(NOW));
+	}
+
+	private static void testExpiresWithoutDate() {
+		CacheValidators validators = CacheValidators.fromHeaders(null, null, "private",
+				NOW + 5000, 0, NOW);
+		assertEquals(NOW + 5000, validators.getExpiresAt());
+	}
+
+	private static void testUnknownExpiryNeverExpires() {
+		CacheValidators validators = CacheValidators.fromHeaders(null, "Sat, 01 Jan 2011 00:00:00 GMT",
+				null, 0, 0, NOW);
+		assertEquals(CacheValidators.UNKNOWN_EXPIRY, validators.getExpiresAt());
+		assertFalse(validators.isExpired(Long.MAX_VALUE));
+		assertTrue(validators.canRevalidate());
+
+		// A malformed max-age says nothing either
+		validators = CacheValidators.fromHeaders(null, null, "max-age=soon", 0, 0, NOW);
+		assertEquals(CacheValidators.UNKNOWN_EXPIRY, validators.getExpiresAt());
+	}
+
+	private static void testMergeKeepsCachedValidators() {
+		CacheValidators cached = new CacheValidators("\"a\"", "yesterday", NOW);
+		CacheValidators notModified = new CacheValidators(null, "today", NOW + 1000);
+		CacheValidators merged = notModified.mergeWith(cached);
+
+		assertEquals("\"a\"", merged.getETag());
+		assertEquals("today", merged.getLastModified());
+		assertEquals(NOW + 1000, merged.getExpiresAt());
+		assertFalse(merged.isExpired(NOW));
+	}
+
+	private static void testEncodeRoundTrip() {
+		CacheValidators decoded = CacheValidators.decode(
+				new CacheValidators(null, "today", NOW).encode());
+		assertEquals(null, decoded.getETag());
+		assertEquals("today", decoded.getLastModified());
+		assertEquals(NOW, decoded.getExpiresAt());
+
+		assertEquals(null, CacheValidators.decode("garbage"));
+	}
+
+	private static void assertEquals(Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError("expected " + expected + " but was " + actual);
+		}
+	}
+
+	private static void assertTrue(boolean condition) {
+		if (!condition) throw new AssertionError();
+	}
+
+	private static void assertFalse(boolean condition) {
+		if (condition) throw new AssertionError();
+	}
+}
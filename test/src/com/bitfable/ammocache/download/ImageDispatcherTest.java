@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the order in which {@link ImageDispatcher} runs queued tasks.
+ */
+public class ImageDispatcherTest {
+	public static void main(String[] args) throws InterruptedException {
+		testLifoWithinPriority();
+		testFifoWithinPriority();
+		testHigherPriorityFirst();
+		testRequeueKeepsPlace();
+		testSetPriorityRequeues();
+	}
+
+	private static void testLifoWithinPriority() throws InterruptedException {
+		Harness harness = new Harness();
+		for (int i = 0; i < 5; i++) {
+			harness.execute(i, ImageDispatcher.PRIORITY_NORMAL);
+		}
+		assertEquals("[4, 3, 2, 1, 0]", harness.run());
+	}
+
+	private static void testFifoWithinPriority() throws InterruptedException {
+		Harness harness = new Harness();
+		harness.mDispatcher.setLifo(false);
+		for (int i = 0; i < 5; i++) {
+			harness.execute(i, ImageDispatcher.PRIORITY_NORMAL);
+		}
+		assertEquals("[0, 1, 2, 3, 4]", harness.run());
+	}
+
+	private static void testHigherPriorityFirst() throws InterruptedException {
+		Harness harness = new Harness();
+		harness.execute(0, ImageDispatcher.PRIORITY_LOW);
+		harness.execute(1, ImageDispatcher.PRIORITY_HIGH);
+		harness.execute(2, ImageDispatcher.PRIORITY_NORMAL);
+		harness.execute(3, ImageDispatcher.PRIORITY_HIGH);
+		assertEquals("[3, 1, 2, 0]", harness.run());
+	}
+
+	private static void testRequeueKeepsPlace() throws InterruptedException {
+		Harness harness = new Harness();
+		List<RecordingTask> tasks = new ArrayList<RecordingTask>();
+		for (int i = 0; i < 5; i++) {
+			tasks.add(harness.execute(i, ImageDispatcher.PRIORITY_NORMAL));
+		}
+		// As when loads are paused, then resumed in another order
+		for (RecordingTask task : tasks) {
+			assertEquals(Boolean.TRUE, harness.mDispatcher.remove(task));
+		}
+		Collections.shuffle(tasks);
+		for (RecordingTask task : tasks) {
+			harness.mDispatcher.requeue(task);
+		}
+		assertEquals("[4, 3, 2, 1, 0]", harness.run());
+	}
+
+	private static void testSetPriorityRequeues() throws InterruptedException {
+		Harness harness = new Harness();
+		RecordingTask first = harness.execute(0, ImageDispatcher.PRIORITY_NORMAL);
+		harness.execute(1, ImageDispatcher.PRIORITY_NORMAL);
+		harness.execute(2, ImageDispatcher.PRIORITY_HIGH);
+		// Queued again as the most recent task, ahead of the others
+		harness.mDispatcher.setPriority(first, ImageDispatcher.PRIORITY_HIGH);
+		assertEquals("[0, 2, 1]", harness.run());
+	}
+
+	private static void assertEquals(Object expected, Object actual) {
+		if (!expected.equals(actual)) {
+			throw new AssertionError("expected " + expected + " but was " + actual);
+		}
+	}
+
+	/**
+	 * Keeps the only thread of a dispatcher busy while tasks are queued, so
+	 * that they run in the order the queue gives them
+	 */
+	private static class Harness {
+		final ImageDispatcher mDispatcher = new ImageDispatcher(1, null);
+		final List<Integer> mRunOrder = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<RecordingTask> mTasks = new ArrayList<RecordingTask>();
+		final CountDownLatch mRelease = new CountDownLatch(1);
+
+		Harness() throws InterruptedException {
+			final CountDownLatch started = new CountDownLatch(1);
+			mDispatcher.execute(new ImageDispatcher.Task(ImageDispatcher.PRIORITY_NORMAL) {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						mRelease.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			started.await();
+		}
+
+		RecordingTask execute(int id, int priority) {
+			RecordingTask task = new RecordingTask(id, priority, mRunOrder);
+			mTasks.add(task);
+			mDispatcher.execute(task);
+			return task;
+		}
+
+		/**
+		 * @return the ids of the tasks in the order they ran
+		 */
+		String run() throws InterruptedException {
+			mRelease.countDown();
+			for (RecordingTask task : mTasks) {
+				if (!task.mDone.await(5, TimeUnit.SECONDS)) {
+					throw new AssertionError("task " + task.mId + " never ran");
+				}
+			}
+			mDispatcher.shutdown();
+			return mRunOrder.toString();
+		}
+	}
+
+	private static class RecordingTask extends ImageDispatcher.Task {
+		final int mId;
+		final List<Integer> mRunOrder;
+		final CountDownLatch mDone = new CountDownLatch(1);
+
+		RecordingTask(int id, int priority, List<Integer> runOrder) {
+			super(priority);
+			mId = id;
+			mRunOrder = runOrder;
+		}
+
+		@Override
+		public void run() {
+			mRunOrder.add(mId);
+			mDone.countDown();
+		}
+	}
+}
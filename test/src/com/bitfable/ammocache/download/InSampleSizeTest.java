@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Tony Wong
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitfable.ammocache.download;
+
+/**
+ * Tests {@link InSampleSize}, which BitmapDecoder uses to downsample images.
+ */
+public class InSampleSizeTest {
+	public static void main(String[] args) {
+		testNoTargetKeepsOriginalSize();
+		testOneAxisTarget();
+		testExactFit();
+		testSmallerThanTarget();
+	}
+
+	private static void testNoTargetKeepsOriginalSize() {
+		assertEquals(1, InSampleSize.calculate(1000, 800, 0, 0));
+		assertEquals(1, InSampleSize.calculate(2000, 1500, 0, 0));
+		assertEquals(1, InSampleSize.calculate(2000, 1500, -1, -1));
+	}
+
+	private static void testOneAxisTarget() {
+		// Only the width limits the sample size
+		assertEquals(4, InSampleSize.calculate(2000, 100, 500, 0));
+		assertEquals(2, InSampleSize.calculate(2000, 100, 501, 0));
+		// Only the height limits the sample size
+		assertEquals(8, InSampleSize.calculate(100, 1600, 0, 200));
+		assertEquals(4, InSampleSize.calculate(100, 1600, -1, 201));
+	}
+
+	private static void testExactFit() {
+		assertEquals(2, InSampleSize.calculate(1000, 800, 500, 400));
+		assertEquals(1, InSampleSize.calculate(1000, 800, 1000, 800));
+		// The larger target wins so that both axes stay large enough
+		assertEquals(2, InSampleSize.calculate(1000, 800, 250, 400));
+	}
+
+	private static void testSmallerThanTarget() {
+		assertEquals(1, InSampleSize.calculate(100, 100, 200, 200));
+	}
+
+	private static void assertEquals(int expected, int actual) {
+		if (expected != actual) {
+			throw new AssertionError("expected " + expected + " but was " + actual);
+		}
+	}
+}